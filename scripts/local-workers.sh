@@ -0,0 +1,68 @@
+#!/bin/bash
+# Render a scene headless once locally and once through two disk render workers on this machine, and print
+# both reports. The run fails if either render or a worker fails.
+#
+# Usage: scripts/local-workers.sh <scene> [spp]
+#
+# Build the plugin jar with "gradle jar" first. The scene must use the LargeDiskOctree implementation.
+# JAVA_OPTS is passed to every JVM, and SCENE_DIR is passed on as -scene-dir when set.
+set -euo pipefail
+
+if [ $# -lt 1 ]; then
+    echo "Usage: $0 <scene> [spp]" >&2
+    exit 1
+fi
+SCENE=$1
+SPP=${2:-16}
+JAR=$(ls build/libs/*.jar | head -n 1)
+PORT1=${PORT1:-25571}
+PORT2=${PORT2:-25572}
+OUT=$(mktemp -d)
+# Workers only open sub-octree files in their storage roots, so all processes share one
+STORAGE=$OUT/storage
+mkdir -p "$STORAGE"
+OPTS="${JAVA_OPTS:-} -Dchunkydiskrenderer.storage=$STORAGE"
+SCENE_ARGS=(-render "$SCENE" -spp "$SPP")
+if [ -n "${SCENE_DIR:-}" ]; then
+    SCENE_ARGS+=(-scene-dir "$SCENE_DIR")
+fi
+
+WORKERS=()
+cleanup() {
+    if [ ${#WORKERS[@]} -gt 0 ]; then
+        kill "${WORKERS[@]}" 2>/dev/null || true
+    fi
+}
+trap cleanup EXIT
+
+wait_for_worker() {
+    for _ in $(seq 1 300); do
+        if grep -q "listening" "$OUT/worker-$1.log"; then
+            return 0
+        fi
+        sleep 0.1
+    done
+    echo "Worker on port $1 did not start, see $OUT/worker-$1.log" >&2
+    return 1
+}
+
+echo "Local render:"
+java $OPTS -jar "$JAR" "${SCENE_ARGS[@]}" -f "$OUT/local.png"
+
+for port in "$PORT1" "$PORT2"; do
+    java $OPTS -jar "$JAR" -worker "$port" > "$OUT/worker-$port.log" 2>&1 &
+    WORKERS+=($!)
+    wait_for_worker "$port"
+done
+
+echo "Render through workers on ports $PORT1 and $PORT2:"
+java $OPTS -Dchunkydiskrenderer.workers="127.0.0.1:$PORT1,127.0.0.1:$PORT2" -jar "$JAR" \
+    "${SCENE_ARGS[@]}" -f "$OUT/workers.png"
+
+for pid in "${WORKERS[@]}"; do
+    if ! kill -0 "$pid" 2>/dev/null; then
+        echo "A worker exited during the render, see $OUT" >&2
+        exit 1
+    fi
+done
+echo "Images and worker logs are in $OUT"
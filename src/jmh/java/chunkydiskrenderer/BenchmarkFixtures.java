@@ -0,0 +1,149 @@
+package chunkydiskrenderer;
+
+import se.llbit.chunky.chunk.BlockPalette;
+import se.llbit.math.Vector3;
+
+import java.util.Random;
+
+/**
+ * Deterministic synthetic fixtures shared by the benchmarks, so results are comparable across commits.
+ */
+public final class BenchmarkFixtures {
+    public static final long SEED = 0x5eed;
+
+    private BenchmarkFixtures() {
+    }
+
+    /**
+     * Heightmap terrain from the synthetic world generator as a flat (x, z, y) ordered array.
+     */
+    public static int[] terrainTypes(int depth, BlockPalette palette) {
+        SyntheticWorldGenerator generator = new SyntheticWorldGenerator(SyntheticWorldGenerator.Mode.HEIGHTMAP, SEED, palette);
+        int size = 1 << depth;
+        int[] types = new int[size * size * size];
+        int i = 0;
+        for (int x = 0; x < size; x++) {
+            for (int z = 0; z < size; z++) {
+                for (int y = 0; y < size; y++) {
+                    types[i++] = generator.blockAt(0, size, x, y, z);
+                }
+            }
+        }
+        return types;
+    }
+
+    /**
+     * Build a MiniPackedOctree from terrainTypes, skipping air.
+     */
+    public static MiniPackedOctree build(int depth, int[] types, BlockPalette palette) {
+        MiniPackedOctree octree = new MiniPackedOctree(depth, new Vector3(0, 0, 0));
+        int size = 1 << depth;
+        int i = 0;
+        for (int x = 0; x < size; x++) {
+            for (int z = 0; z < size; z++) {
+                for (int y = 0; y < size; y++) {
+                    int type = types[i++];
+                    if (type != palette.airId) {
+                        octree.set(type, x, y, z);
+                    }
+                }
+            }
+        }
+        return octree;
+    }
+
+    /**
+     * Split terrainTypes into 16^3 sections in setCube order, sections[(sx * count + sz) * count + sy].
+     */
+    public static int[][] sections(int depth, int[] types) {
+        int size = 1 << depth;
+        int sectionSize = Math.min(16, size);
+        int count = size / sectionSize;
+        int[][] sections = new int[count * count * count][sectionSize * sectionSize * sectionSize];
+        int i = 0;
+        for (int x = 0; x < size; x++) {
+            for (int z = 0; z < size; z++) {
+                for (int y = 0; y < size; y++) {
+                    int[] section = sections[((x / sectionSize) * count + z / sectionSize) * count + y / sectionSize];
+                    section[((z % sectionSize) * sectionSize + y % sectionSize) * sectionSize + x % sectionSize] = types[i++];
+                }
+            }
+        }
+        return sections;
+    }
+
+    /**
+     * Build a MiniPackedOctree from sections one setCube call per section.
+     */
+    public static MiniPackedOctree buildSections(int depth, int[][] sections) {
+        MiniPackedOctree octree = new MiniPackedOctree(depth, new Vector3(0, 0, 0));
+        int size = 1 << depth;
+        int sectionSize = Math.min(16, size);
+        int sectionDepth = Integer.numberOfTrailingZeros(sectionSize);
+        int count = size / sectionSize;
+        for (int i = 0; i < sections.length; i++) {
+            int sx = i / (count * count), sz = (i / count) % count, sy = i % count;
+            octree.setCube(sectionDepth, sections[i], sx * sectionSize, sy * sectionSize, sz * sectionSize);
+        }
+        return octree;
+    }
+
+    public static MiniPackedOctree terrain(int depth, BlockPalette palette) {
+        return build(depth, terrainTypes(depth, palette), palette);
+    }
+
+    /**
+     * Fill a width x height x width region of a LargeDiskOctree with heightmap terrain.
+     */
+    public static void terrain(LargeDiskOctree octree, BlockPalette palette, int x0, int z0, int width, int height) {
+        new SyntheticWorldGenerator(SyntheticWorldGenerator.Mode.HEIGHTMAP, SEED, palette)
+                .generate(octree, x0, 0, z0, width, height, null);
+    }
+
+    /**
+     * Random query points inside a cube of the given depth.
+     */
+    public static int[] points(int count, int depth) {
+        Random random = new Random(SEED);
+        int[] points = new int[count * 3];
+        for (int i = 0; i < points.length; i++) {
+            points[i] = random.nextInt(1 << depth);
+        }
+        return points;
+    }
+
+    /**
+     * Camera rays from a pinhole camera looking down at the scene.
+     */
+    public static LargeDiskRenderer.CacheRay[] cameraRays(int width, int height, float ox, float oy, float oz,
+                                                           float yaw, float pitch, float fov) {
+        LargeDiskRenderer.CacheRay[] rays = new LargeDiskRenderer.CacheRay[width * height];
+        double tanFov = Math.tan(Math.toRadians(fov) / 2);
+        double cy = Math.cos(yaw), sy = Math.sin(yaw);
+        double cp = Math.cos(pitch), sp = Math.sin(pitch);
+        for (int j = 0; j < height; j++) {
+            for (int i = 0; i < width; i++) {
+                double u = (2 * (i + 0.5) / width - 1) * tanFov * width / height;
+                double v = (1 - 2 * (j + 0.5) / height) * tanFov;
+
+                // Rotate (u, v, 1) by pitch around x, then by yaw around y
+                double dy = v * cp + sp;
+                double dz0 = -v * sp + cp;
+                double dx = u * cy + dz0 * sy;
+                double dz = -u * sy + dz0 * cy;
+                double length = Math.sqrt(dx * dx + dy * dy + dz * dz);
+
+                rays[i + j * width] = LargeDiskRenderer.CacheRay.create(0, i, j,
+                        LargeDiskRenderer.Float3.create(ox, oy, oz),
+                        LargeDiskRenderer.Float3.create((float) (dx / length), (float) (dy / length), (float) (dz / length)));
+            }
+        }
+        return rays;
+    }
+
+    public static void resetRays(LargeDiskRenderer.CacheRay[] rays) {
+        for (LargeDiskRenderer.CacheRay ray : rays) {
+            ray.resetHit();
+        }
+    }
+}
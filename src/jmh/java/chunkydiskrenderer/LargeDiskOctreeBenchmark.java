@@ -0,0 +1,65 @@
+package chunkydiskrenderer;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import se.llbit.chunky.chunk.BlockPalette;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sub-octree switching and point queries on a LargeDiskOctree backed by real files.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class LargeDiskOctreeBenchmark {
+    private static final int QUERIES = 1 << 12;
+
+    private BlockPalette palette;
+    private LargeDiskOctree octree;
+    private int[] points;
+    private final int[] types = new int[QUERIES];
+    private int toggle = 0;
+
+    @Setup
+    public void setup() {
+        palette = new BlockPalette();
+        octree = new LargeDiskOctree(11);
+        BenchmarkFixtures.terrain(octree, palette, 768, 768, 512, 64);
+        points = BenchmarkFixtures.points(QUERIES, 11);
+    }
+
+    /**
+     * Alternate writes between two sub-octrees so every call stores one tree and loads the other.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public void switchOctrees() {
+        toggle ^= 1;
+        octree.set(palette.stoneId, 1000 + toggle * 48, 20, 1000 + toggle * 48);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    @OperationsPerInvocation(QUERIES)
+    public void get(Blackhole blackhole) {
+        for (int i = 0; i < points.length; i += 3) {
+            blackhole.consume(octree.get(points[i], points[i + 1], points[i + 2]));
+        }
+    }
+
+    /**
+     * The same queries as get, grouped by sub-octree.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    @OperationsPerInvocation(QUERIES)
+    public int[] getBatch() {
+        octree.getBatch(points, QUERIES, types, null);
+        return types;
+    }
+}
@@ -0,0 +1,120 @@
+package chunkydiskrenderer;
+
+import it.unimi.dsi.fastutil.ints.IntIntMutablePair;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import se.llbit.chunky.chunk.BlockPalette;
+import se.llbit.chunky.renderer.scene.Scene;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Build, point query and intersection performance of a single MiniPackedOctree.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class MiniPackedOctreeBenchmark {
+    private static final int DEPTH = 8;
+    private static final int QUERIES = 1 << 16;
+    private static final int RAYS = 256 * 144;
+    private static final int PACKET_SIZE = 8;
+
+    // Query the octree as built, or after the depth first relayout done before storing
+    @Param({"false", "true"})
+    public boolean compact;
+
+    private BlockPalette palette;
+    private Scene scene;
+    private int[] types;
+    private int[][] sections;
+    private MiniPackedOctree octree;
+    private int[] points;
+    private LargeDiskRenderer.CacheRay[] rays;
+    private final LargeDiskRenderer.CacheRay[] packet = new LargeDiskRenderer.CacheRay[PACKET_SIZE];
+    private final IntIntMutablePair typeAndLevel = new IntIntMutablePair(0, 0);
+
+    @Setup
+    public void setup() {
+        palette = new BlockPalette();
+        scene = new Scene();
+        types = BenchmarkFixtures.terrainTypes(DEPTH, palette);
+        sections = BenchmarkFixtures.sections(DEPTH, types);
+        octree = BenchmarkFixtures.build(DEPTH, types, palette);
+        if (compact) {
+            octree.compact();
+        }
+        points = BenchmarkFixtures.points(QUERIES, DEPTH);
+        rays = BenchmarkFixtures.cameraRays(256, 144, -32, 200, -32, (float) Math.toRadians(45), (float) Math.toRadians(-30), 70);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public MiniPackedOctree build() {
+        return BenchmarkFixtures.build(DEPTH, types, palette);
+    }
+
+    /**
+     * The same terrain as build, set one 16^3 section at a time.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public MiniPackedOctree buildSections() {
+        return BenchmarkFixtures.buildSections(DEPTH, sections);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    @OperationsPerInvocation(QUERIES)
+    public void get(Blackhole blackhole) {
+        for (int i = 0; i < points.length; i += 3) {
+            blackhole.consume(octree.get(points[i], points[i + 1], points[i + 2]));
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    @OperationsPerInvocation(QUERIES)
+    public void getWithLevel(Blackhole blackhole) {
+        for (int i = 0; i < points.length; i += 3) {
+            octree.getWithLevel(typeAndLevel, points[i], points[i + 1], points[i + 2]);
+            blackhole.consume(typeAndLevel.leftInt());
+        }
+    }
+
+    /**
+     * Rays per second through one sub-octree.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @OperationsPerInvocation(RAYS)
+    public void intersect(Blackhole blackhole) {
+        BenchmarkFixtures.resetRays(rays);
+        for (LargeDiskRenderer.CacheRay ray : rays) {
+            blackhole.consume(octree.intersect(ray, palette, scene));
+        }
+    }
+
+    /**
+     * Rays per second through one sub-octree, traced in packets of neighbouring pixels.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @OperationsPerInvocation(RAYS)
+    public void intersectPacket(Blackhole blackhole) {
+        BenchmarkFixtures.resetRays(rays);
+        for (int i = 0; i < rays.length; i += PACKET_SIZE) {
+            int count = Math.min(PACKET_SIZE, rays.length - i);
+            System.arraycopy(rays, i, packet, 0, count);
+            octree.intersectPacket(packet, count, palette, scene);
+        }
+        blackhole.consume(rays[rays.length - 1].distance);
+    }
+}
@@ -0,0 +1,66 @@
+package chunkydiskrenderer;
+
+import it.unimi.dsi.fastutil.io.FastBufferedInputStream;
+import org.openjdk.jmh.annotations.*;
+import se.llbit.chunky.chunk.BlockPalette;
+
+import java.io.*;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Serialization throughput of a sub-octree, using the same streams as LargeDiskOctree.
+ * The bytes counters give the encode and decode rate in bytes per second.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class StoreLoadBenchmark {
+    @Param({"false", "true"})
+    public boolean compact;
+
+    private MiniPackedOctree octree;
+    private byte[] compressed;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Bytes {
+        public long compressedBytes;
+    }
+
+    @Setup
+    public void setup() throws IOException {
+        octree = BenchmarkFixtures.terrain(9, new BlockPalette());
+        if (compact) {
+            octree.compact();
+        }
+        compressed = store();
+    }
+
+    private byte[] store() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(new GZIPOutputStream(bytes))) {
+            octree.store(out);
+        }
+        return bytes.toByteArray();
+    }
+
+    @Benchmark
+    public byte[] store(Bytes counter) throws IOException {
+        byte[] data = store();
+        counter.compressedBytes += data.length;
+        return data;
+    }
+
+    @Benchmark
+    public MiniPackedOctree load(Bytes counter) throws IOException {
+        counter.compressedBytes += compressed.length;
+        try (DataInputStream in = new DataInputStream(new FastBufferedInputStream(new GZIPInputStream(new ByteArrayInputStream(compressed))))) {
+            return MiniPackedOctree.load(in);
+        }
+    }
+}
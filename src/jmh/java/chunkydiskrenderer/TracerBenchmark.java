@@ -0,0 +1,54 @@
+package chunkydiskrenderer;
+
+import org.openjdk.jmh.annotations.*;
+import se.llbit.chunky.chunk.BlockPalette;
+import se.llbit.chunky.renderer.scene.Scene;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End to end frame time of a full LargeDiskRendererTracer sweep over a fixed synthetic scene.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class TracerBenchmark {
+    private LargeDiskRendererTracer tracer;
+    private LargeDiskRenderer.CacheRay[] rays;
+    private final ArrayList<LargeDiskRenderer.CacheRay> batch = new ArrayList<>();
+    private final ArrayList<LargeDiskRenderer.CacheRay> output = new ArrayList<>();
+
+    @Setup
+    public void setup() {
+        BlockPalette palette = new BlockPalette();
+        LargeDiskOctree octree = new LargeDiskOctree(12);
+        BenchmarkFixtures.terrain(octree, palette, 512, 512, 1024, 64);
+        octree.cleanup();
+
+        tracer = new LargeDiskRendererTracer(octree);
+        tracer.scene = new Scene();
+        tracer.palette = palette;
+        tracer.setDaemon(true);
+        tracer.start();
+
+        rays = BenchmarkFixtures.cameraRays(320, 180, 400, 120, 400, (float) Math.toRadians(45), (float) Math.toRadians(-25), 70);
+    }
+
+    @TearDown
+    public void tearDown() {
+        tracer.interrupt();
+    }
+
+    @Benchmark
+    public int frame() throws InterruptedException {
+        BenchmarkFixtures.resetRays(rays);
+        batch.addAll(Arrays.asList(rays));
+        output.clear();
+        return tracer.traceRays(output, batch);
+    }
+}
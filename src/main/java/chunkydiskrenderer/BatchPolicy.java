@@ -0,0 +1,88 @@
+package chunkydiskrenderer;
+
+import org.apache.commons.math3.util.FastMath;
+import se.llbit.chunky.renderer.RenderMode;
+
+/**
+ * Decides when the rays waiting in a LargeDiskRenderer are swept through the sub-octrees.
+ * A sweep costs a fixed amount, mostly loading sub-octrees, plus an amount per ray for binning and intersecting.
+ * Both are measured as time from completed sweeps, so the fixed cost already includes the bytes loaded.
+ * Previews size batches so a sweep fits the target latency, final renders size them so the fixed cost
+ * is a small share of the sweep.
+ *
+ * A sweep also starts when the oldest waiting ray has waited the maximum time, when the queue is full,
+ * or when the producer has queued a complete group of rays and waits for it.
+ */
+public class BatchPolicy {
+    // Preview sweeps should finish within the preview refinement interval
+    private static final long PREVIEW_TARGET_LATENCY = 200_000_000L;
+    private static final long PREVIEW_MAX_WAIT = 20_000_000L;
+    // Final renders keep the fixed cost of a sweep below this share of the sweep
+    private static final double RENDER_FIXED_SHARE = 0.1;
+    private static final long RENDER_MAX_WAIT = 2_000_000_000L;
+    // Sweeps with fewer rays waste a pass over the sub-octrees
+    private static final int MIN_RAYS = 1 << 12;
+
+    // Estimates used until the first sweeps have been measured
+    private static final double DEFAULT_SWEEP_NANOS = 50_000_000;
+    private static final double DEFAULT_RAY_NANOS = 2_000;
+    // Weight of each sweep in the running averages
+    private static final double WEIGHT = 0.25;
+
+    private static final BatchPolicy INSTANCE = new BatchPolicy();
+
+    private volatile boolean preview = true;
+    private volatile double sweepNanos = DEFAULT_SWEEP_NANOS;
+    private volatile double rayNanos = DEFAULT_RAY_NANOS;
+
+    public static BatchPolicy get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Favour latency for previews and throughput for final renders.
+     */
+    public void setMode(RenderMode mode) {
+        preview = mode == RenderMode.PREVIEW;
+    }
+
+    /**
+     * Record a completed sweep of rays taking sweepNanos, of which rayNanos were spent binning and intersecting.
+     */
+    public void recordSweep(int rays, long sweepNanos, long rayNanos) {
+        if (rays <= 0) return;
+        double fixed = FastMath.max(0, sweepNanos - rayNanos);
+        this.sweepNanos += (fixed - this.sweepNanos) * WEIGHT;
+        this.rayNanos += ((double) rayNanos / rays - this.rayNanos) * WEIGHT;
+    }
+
+    /**
+     * Number of rays a sweep should start with.
+     */
+    public int targetRays() {
+        double rays;
+        if (preview) {
+            rays = (PREVIEW_TARGET_LATENCY - sweepNanos) / rayNanos;
+        } else {
+            rays = sweepNanos / (RENDER_FIXED_SHARE * rayNanos);
+        }
+        return (int) FastMath.max(MIN_RAYS, FastMath.min(rays, MemoryBudget.get().maxQueuedRays()));
+    }
+
+    /**
+     * Nanoseconds to keep waiting for more rays before sweeping, 0 to sweep now.
+     *
+     * @param queued number of waiting rays
+     * @param waitedNanos time the oldest waiting ray has waited
+     * @param complete true if the producer waits for the queued rays
+     */
+    public long waitNanos(int queued, long waitedNanos, boolean complete) {
+        if (queued == 0) {
+            return Long.MAX_VALUE;
+        }
+        if (complete || queued >= targetRays() || queued >= MemoryBudget.get().maxQueuedRays()) {
+            return 0;
+        }
+        return FastMath.max(0, (preview ? PREVIEW_MAX_WAIT : RENDER_MAX_WAIT) - waitedNanos);
+    }
+}
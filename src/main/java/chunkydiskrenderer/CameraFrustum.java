@@ -0,0 +1,146 @@
+package chunkydiskrenderer;
+
+import org.apache.commons.math3.util.FastMath;
+import se.llbit.chunky.renderer.projection.ProjectionMode;
+import se.llbit.chunky.renderer.scene.Camera;
+import se.llbit.math.Ray;
+
+/**
+ * A conservative view frustum built from the corner rays of the camera.
+ * Used to cull top level cells of the LargeDiskOctree before any rays are traced.
+ */
+public class CameraFrustum {
+    // Corners of the view plane in the same coordinates used for camera ray generation
+    private static final double[][] CORNERS = {{-1, -1}, {1, -1}, {1, 1}, {-1, 1}};
+
+    // Each plane is stored as (nx, ny, nz, d), a point p is inside if n.p + d >= 0
+    private final double[] planes;
+    private final double apexX, apexY, apexZ;
+    // True if all camera rays start at the apex
+    private final boolean pointOrigin;
+
+    private CameraFrustum(double[] planes, double apexX, double apexY, double apexZ, boolean pointOrigin) {
+        this.planes = planes;
+        this.apexX = apexX;
+        this.apexY = apexY;
+        this.apexZ = apexZ;
+        this.pointOrigin = pointOrigin;
+    }
+
+    /**
+     * Build the frustum for a camera rendering to a width x height canvas.
+     * Projections that cannot be bounded by four planes give a frustum that contains everything.
+     */
+    public static CameraFrustum fromCamera(Camera camera, int width, int height) {
+        Ray ray = new Ray();
+        double halfWidth = width / (2.0 * height);
+
+        camera.calcViewRay(ray, 0, 0);
+        double apexX = ray.o.x, apexY = ray.o.y, apexZ = ray.o.z;
+        double insideX = ray.o.x + ray.d.x;
+        double insideY = ray.o.y + ray.d.y;
+        double insideZ = ray.o.z + ray.d.z;
+
+        ProjectionMode projection = camera.getProjectionMode();
+        if (projection != ProjectionMode.PINHOLE && projection != ProjectionMode.PARALLEL) {
+            return new CameraFrustum(new double[0], apexX, apexY, apexZ, true);
+        }
+
+        double[][] origins = new double[4][];
+        double[][] directions = new double[4][];
+        for (int i = 0; i < 4; i++) {
+            camera.calcViewRay(ray, CORNERS[i][0] * halfWidth, CORNERS[i][1] * 0.5);
+            origins[i] = new double[] {ray.o.x, ray.o.y, ray.o.z};
+            directions[i] = new double[] {ray.d.x, ray.d.y, ray.d.z};
+        }
+
+        double[] planes = new double[4 * 4];
+        int count = 0;
+        for (int i = 0; i < 4; i++) {
+            double[] o0 = origins[i];
+            double[] d0 = directions[i];
+            double[] o1 = origins[(i + 1) % 4];
+            double[] d1 = directions[(i + 1) % 4];
+
+            // The plane spanned by two neighbouring corner rays
+            double ex = o1[0] + d1[0] - o0[0];
+            double ey = o1[1] + d1[1] - o0[1];
+            double ez = o1[2] + d1[2] - o0[2];
+            double nx = d0[1] * ez - d0[2] * ey;
+            double ny = d0[2] * ex - d0[0] * ez;
+            double nz = d0[0] * ey - d0[1] * ex;
+            double length = FastMath.sqrt(nx * nx + ny * ny + nz * nz);
+            if (length < 1e-12) continue;
+            nx /= length;
+            ny /= length;
+            nz /= length;
+
+            double d = -(nx * o0[0] + ny * o0[1] + nz * o0[2]);
+            if (nx * insideX + ny * insideY + nz * insideZ + d < 0) {
+                nx = -nx;
+                ny = -ny;
+                nz = -nz;
+                d = -d;
+            }
+
+            planes[count++] = nx;
+            planes[count++] = ny;
+            planes[count++] = nz;
+            planes[count++] = d;
+        }
+
+        double[] trimmed = new double[count];
+        System.arraycopy(planes, 0, trimmed, 0, count);
+        return new CameraFrustum(trimmed, apexX, apexY, apexZ, projection != ProjectionMode.PARALLEL);
+    }
+
+    /**
+     * Extrapolate the camera motion from a previous frustum to predict where this frustum is heading.
+     */
+    public CameraFrustum extrapolate(CameraFrustum previous) {
+        return translated(apexX - previous.apexX, apexY - previous.apexY, apexZ - previous.apexZ);
+    }
+
+    public CameraFrustum translated(double dx, double dy, double dz) {
+        double[] moved = planes.clone();
+        for (int i = 0; i < moved.length; i += 4) {
+            moved[i + 3] -= moved[i] * dx + moved[i + 1] * dy + moved[i + 2] * dz;
+        }
+        return new CameraFrustum(moved, apexX + dx, apexY + dy, apexZ + dz, pointOrigin);
+    }
+
+    /**
+     * Returns true if every camera ray starts at the apex, so the distance to a box bounds the hit distance within it.
+     */
+    public boolean hasPointOrigin() {
+        return pointOrigin;
+    }
+
+    /**
+     * Returns true if the box may be (partially) inside the frustum.
+     */
+    public boolean intersects(double xmin, double ymin, double zmin, double xmax, double ymax, double zmax) {
+        for (int i = 0; i < planes.length; i += 4) {
+            double nx = planes[i], ny = planes[i + 1], nz = planes[i + 2];
+
+            // Test the corner furthest along the plane normal
+            double px = nx >= 0 ? xmax : xmin;
+            double py = ny >= 0 ? ymax : ymin;
+            double pz = nz >= 0 ? zmax : zmin;
+            if (nx * px + ny * py + nz * pz + planes[i + 3] < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Distance from the frustum apex to the closest point of the box.
+     */
+    public double distance(double xmin, double ymin, double zmin, double xmax, double ymax, double zmax) {
+        double dx = FastMath.max(FastMath.max(xmin - apexX, 0), apexX - xmax);
+        double dy = FastMath.max(FastMath.max(ymin - apexY, 0), apexY - ymax);
+        double dz = FastMath.max(FastMath.max(zmin - apexZ, 0), apexZ - zmax);
+        return FastMath.sqrt(dx * dx + dy * dy + dz * dz);
+    }
+}
@@ -0,0 +1,73 @@
+package chunkydiskrenderer;
+
+import se.llbit.chunky.renderer.scene.Camera;
+import se.llbit.math.Vector3;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * A camera path through keyframes, interpolated linearly.
+ *
+ * The path file has one keyframe per line: x y z yaw pitch [fov], with angles in degrees.
+ * Empty lines and lines starting with # are ignored.
+ */
+public class CameraPath {
+    private final ArrayList<double[]> keyframes = new ArrayList<>();
+
+    public static CameraPath load(File file) throws IOException {
+        CameraPath path = new CameraPath();
+        try (BufferedReader in = new BufferedReader(new FileReader(file))) {
+            String line;
+            int lineNumber = 0;
+            while ((line = in.readLine()) != null) {
+                lineNumber++;
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) continue;
+
+                String[] parts = line.split("\\s+");
+                if (parts.length != 5 && parts.length != 6) {
+                    throw new IOException(file + ":" + lineNumber + ": expected x y z yaw pitch [fov]");
+                }
+                double[] keyframe = new double[6];
+                keyframe[5] = Double.NaN;
+                try {
+                    for (int i = 0; i < parts.length; i++) {
+                        keyframe[i] = Double.parseDouble(parts[i]);
+                    }
+                } catch (NumberFormatException e) {
+                    throw new IOException(file + ":" + lineNumber + ": " + e.getMessage());
+                }
+                path.keyframes.add(keyframe);
+            }
+        }
+        if (path.keyframes.isEmpty()) {
+            throw new IOException(file + ": no keyframes");
+        }
+        return path;
+    }
+
+    /**
+     * Move the camera to position t along the path, from 0 (first keyframe) to 1 (last keyframe).
+     */
+    public void apply(Camera camera, double t) {
+        double position = Math.max(0, Math.min(1, t)) * (keyframes.size() - 1);
+        int i = Math.min((int) position, keyframes.size() - 1);
+        double[] a = keyframes.get(i);
+        double[] b = keyframes.get(Math.min(i + 1, keyframes.size() - 1));
+        double f = position - i;
+
+        camera.setPosition(new Vector3(lerp(a[0], b[0], f), lerp(a[1], b[1], f), lerp(a[2], b[2], f)));
+        camera.setView(Math.toRadians(lerp(a[3], b[3], f)), Math.toRadians(lerp(a[4], b[4], f)), camera.getRoll());
+        if (!Double.isNaN(a[5]) && !Double.isNaN(b[5])) {
+            camera.setFoV(lerp(a[5], b[5], f));
+        }
+    }
+
+    private static double lerp(double a, double b, double f) {
+        return a + (b - a) * f;
+    }
+}
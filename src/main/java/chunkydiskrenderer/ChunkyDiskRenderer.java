@@ -43,6 +43,15 @@ public class ChunkyDiskRenderer implements Plugin {
     }
 
     public static void main(String[] args) {
+        if (HeadlessRender.isHeadless(args)) {
+            HeadlessRender.main(args);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("-worker")) {
+            DiskRenderWorker.main(args);
+            return;
+        }
+
         // Start Chunky normally with this plugin attached.
         Chunky.loadDefaultTextures();
         Chunky chunky = new Chunky(ChunkyOptions.getDefaults());
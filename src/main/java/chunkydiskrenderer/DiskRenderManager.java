@@ -1,23 +1,46 @@
 package chunkydiskrenderer;
 
+import org.apache.commons.math3.util.FastMath;
 import se.llbit.chunky.PersistentSettings;
+import se.llbit.chunky.chunk.BlockPalette;
 import se.llbit.chunky.main.Chunky;
 import se.llbit.chunky.renderer.*;
 import se.llbit.chunky.renderer.scene.Camera;
 import se.llbit.chunky.renderer.scene.Scene;
 import se.llbit.chunky.resources.BitmapImage;
 import se.llbit.log.Log;
+import se.llbit.math.ColorUtil;
 import se.llbit.math.Ray;
+import se.llbit.math.Vector3;
 import se.llbit.util.TaskTracker;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
 import java.util.function.BiConsumer;
 import java.util.function.Consumer;
+import java.util.stream.IntStream;
 
 public class DiskRenderManager extends Thread implements Renderer {
     private static final Repaintable EMPTY_CANVAS = () -> {};
+    // Time between preview refinements in milliseconds
+    private static final long REFINE_INTERVAL = 250;
+    // Pixel steps of the progressive preview passes, coarse to fine
+    private static final int[] PREVIEW_STEPS = {8, 4, 2, 1};
+    // Light final renders with the sun and trace a shadow ray per camera hit, off by default
+    public static final String SUN_LIGHT_PROPERTY = "chunkydiskrenderer.sunLight";
+    // Fraction of the light that does not come from the sun
+    private static final double AMBIENT = 0.3;
+    // Offset of shadow ray origins from the surface, to avoid hitting the surface itself
+    private static final float SHADOW_BIAS = 1e-3f;
+    // Seconds between checkpoints of final renders, 0 disables checkpoints
+    public static final String CHECKPOINT_INTERVAL_PROPERTY = "chunkydiskrenderer.checkpointInterval";
+    private static final long DEFAULT_CHECKPOINT_INTERVAL = 600;
+    // Time shutdown waits for the pass in progress to be checkpointed, in milliseconds
+    private static final long SHUTDOWN_CHECKPOINT_WAIT = 10000;
     private Repaintable canvas = EMPTY_CANVAS;
 
     private boolean shouldFinalize = true;
@@ -45,8 +68,30 @@ public class DiskRenderManager extends Thread implements Renderer {
 
     private TaskTracker.Task renderTask;
 
+    // Frustum of the previous preview, used to predict camera motion
+    private CameraFrustum lastFrustum = null;
+    // Total number of camera rays traced by this renderer
+    private long raysTraced = 0;
+
+    private final DiskRenderMetrics metrics = DiskRenderMetrics.get();
+
     private int drawDepth = 256;
     private boolean drawEntities = true;
+    // Entity hierarchy of the buffered scene, rebuilt after the scene state is overwritten
+    private EntityBvh entities = null;
+    private boolean entitiesStale = true;
+
+    private final boolean sunLight = Boolean.getBoolean(SUN_LIGHT_PROPERTY);
+    private final long checkpointInterval = Long.getLong(CHECKPOINT_INTERVAL_PROPERTY, DEFAULT_CHECKPOINT_INTERVAL) * 1000000000L;
+    private volatile long lastCheckpoint = System.nanoTime();
+    // SPP of the last checkpoint written or resumed
+    private volatile int checkpointSpp = -1;
+    private final Object checkpointMonitor = new Object();
+    private volatile boolean checkpointRequested = false;
+    // True while a final render pass is traced, it is checkpointed at sub-octree boundaries
+    private volatile boolean inPass = false;
+    // Look for a checkpoint of the scene before the next render pass
+    private boolean resumePending = false;
 
     public DiskRenderManager(RenderContext context, boolean headless) {
         super("Render Manager");
@@ -140,15 +185,156 @@ public class DiskRenderManager extends Thread implements Renderer {
         return status;
     }
 
+    public void setDrawEntities(boolean drawEntities) {
+        this.drawEntities = drawEntities;
+    }
+
+    /**
+     * The entities to trace with the octree, or null if entities are not drawn.
+     */
+    private EntityBvh entities() {
+        if (!drawEntities) {
+            return null;
+        }
+        if (entitiesStale) {
+            entities = EntityBvh.build(bufferedScene);
+            entitiesStale = false;
+        }
+        return entities;
+    }
+
     @Override
     public void shutdown() {
+        if (checkpointInterval > 0) {
+            if (inPass) {
+                // Have the pass in progress checkpointed at the next sub-octree boundary before stopping
+                synchronized (checkpointMonitor) {
+                    checkpointRequested = true;
+                    long deadline = System.currentTimeMillis() + SHUTDOWN_CHECKPOINT_WAIT;
+                    try {
+                        long remaining;
+                        while (checkpointRequested && inPass && (remaining = deadline - System.currentTimeMillis()) > 0) {
+                            checkpointMonitor.wait(remaining);
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            } else if (bufferedScene.spp > 0 && bufferedScene.spp != checkpointSpp && mode != RenderMode.PREVIEW) {
+                writeCheckpoint(null);
+            }
+        }
         interrupt();
     }
 
+    private File checkpointFile() throws IOException {
+        return SubOctreeStorage.fromSystemProperties().file(bufferedScene.name() + ".diskcheckpoint");
+    }
+
+    private boolean checkpointDue() {
+        return checkpointInterval > 0 && (checkpointRequested || System.nanoTime() - lastCheckpoint >= checkpointInterval);
+    }
+
+    /**
+     * Write a checkpoint of the completed passes and the pass in progress, null between passes.
+     * The sample buffer is only written by the render manager thread, which is either writing the checkpoint
+     * itself or waiting for the sweep that does.
+     */
+    private void writeCheckpoint(RenderCheckpoint.Pass pass) {
+        long start = System.nanoTime();
+        int spp;
+        try {
+            synchronized (bufferedScene) {
+                spp = bufferedScene.spp;
+                new RenderCheckpoint(RenderCheckpoint.sceneFingerprint(bufferedScene, sunLight), spp,
+                        bufferedScene.renderTime, bufferedScene.getSampleBuffer(), pass).save(checkpointFile());
+            }
+            checkpointSpp = spp;
+            Log.info(String.format("Render checkpoint written at %d SPP in %.1f s", spp, (System.nanoTime() - start) / 1e9));
+        } catch (IOException e) {
+            Log.warn("Could not write render checkpoint", e);
+        }
+
+        lastCheckpoint = System.nanoTime();
+        synchronized (checkpointMonitor) {
+            checkpointRequested = false;
+            checkpointMonitor.notifyAll();
+        }
+    }
+
+    /**
+     * Checkpoints one phase of the render pass in progress when a checkpoint is due.
+     */
+    private RenderCheckpoint.Listener checkpointListener(long cellFingerprint, int phase,
+                                                         ArrayList<LargeDiskRenderer.CacheRay> cameraRays) {
+        return new RenderCheckpoint.Listener() {
+            @Override
+            public boolean due() {
+                return checkpointDue();
+            }
+
+            @Override
+            public void write(RenderCheckpoint.InFlight rays) {
+                writeCheckpoint(new RenderCheckpoint.Pass(cellFingerprint, phase, cameraRays, rays));
+            }
+        };
+    }
+
+    /**
+     * Load the checkpoint of the scene if a resume is pending. Its samples replace the sample buffer unless the
+     * scene already has more, the pass in progress is returned to be continued.
+     */
+    private RenderCheckpoint.Pass resumeCheckpoint(LargeDiskOctree octree) {
+        if (!resumePending || octree == null || checkpointInterval <= 0) {
+            return null;
+        }
+        resumePending = false;
+
+        RenderCheckpoint checkpoint;
+        try {
+            synchronized (bufferedScene) {
+                checkpoint = RenderCheckpoint.load(checkpointFile(),
+                        RenderCheckpoint.sceneFingerprint(bufferedScene, sunLight), octree.cellFingerprint());
+                double[] sampleBuffer = bufferedScene.getSampleBuffer();
+                if (checkpoint == null || checkpoint.spp < bufferedScene.spp || checkpoint.samples.length != sampleBuffer.length) {
+                    return null;
+                }
+                System.arraycopy(checkpoint.samples, 0, sampleBuffer, 0, sampleBuffer.length);
+                bufferedScene.spp = checkpoint.spp;
+                bufferedScene.renderTime = checkpoint.renderTime;
+            }
+        } catch (IOException e) {
+            Log.warn("Could not read render checkpoint", e);
+            return null;
+        }
+
+        checkpointSpp = checkpoint.spp;
+        lastCheckpoint = System.nanoTime();
+        Log.info("Resuming render from a checkpoint at " + checkpoint.spp + " SPP"
+                + (checkpoint.pass == null ? "" : " with a pass in progress"));
+        return checkpoint.pass;
+    }
+
+    /**
+     * Remove the checkpoint of a finished render.
+     */
+    private void deleteCheckpoint() {
+        try {
+            File file = checkpointFile();
+            if (file.exists() && !file.delete()) {
+                Log.warn("Could not delete render checkpoint " + file);
+            }
+        } catch (IOException e) {
+            Log.warn("Could not delete render checkpoint", e);
+        }
+    }
+
     private void updateRenderState(Scene scene) {
         shouldFinalize = scene.shouldFinalizeBuffer();
         if (mode != scene.getMode()) {
             mode = scene.getMode();
+            MemoryBudget.get().setMode(mode);
+            BatchPolicy.get().setMode(mode);
             renderListeners.forEach(listener -> listener.renderStateChanged(mode));
         }
     }
@@ -169,6 +355,7 @@ public class DiskRenderManager extends Thread implements Renderer {
                     sceneProvider.withSceneProtected(scene -> {
                         if (reason.overwriteState()) {
                             bufferedScene.copyState(scene);
+                            entitiesStale = true;
                         }
                         if (reason == ResetReason.MATERIALS_CHANGED || reason == ResetReason.SCENE_LOADED) {
                             scene.importMaterials();
@@ -177,6 +364,12 @@ public class DiskRenderManager extends Thread implements Renderer {
                         bufferedScene.copyTransients(scene);
                         updateRenderState(scene);
 
+                        if (reason == ResetReason.SCENE_LOADED) {
+                            resumePending = true;
+                        } else if (reason == ResetReason.SETTINGS_CHANGED || reason == ResetReason.MATERIALS_CHANGED) {
+                            resumePending = false;
+                        }
+
                         if (reason == ResetReason.SCENE_LOADED) {
                             bufferedScene.swapBuffers();
 
@@ -186,11 +379,8 @@ public class DiskRenderManager extends Thread implements Renderer {
                 }
 
                 if (mode == RenderMode.PREVIEW) {
-                    System.out.println("Previewing");
                     previewRender();
                 } else {
-                    System.out.println("Rendering");
-
                     int spp, targetSpp;
                     synchronized (bufferedScene) {
                         spp = bufferedScene.spp;
@@ -201,11 +391,21 @@ public class DiskRenderManager extends Thread implements Renderer {
                     }
 
                     if (spp < targetSpp) {
+                        LargeDiskRenderer tracer = startPassTracer();
+                        try {
+                            renderPass(tracer);
+                        } finally {
+                            tracer.shutdown();
+                        }
                     } else {
                         sceneProvider.withEditSceneProtected(scene -> {
                             scene.pauseRender();
                             updateRenderState(scene);
                         });
+                        deleteCheckpoint();
+                        if (renderCompleteListener != null) {
+                            renderCompleteListener.accept(bufferedScene.renderTime, samplesPerSecond());
+                        }
                     }
                 }
 
@@ -221,43 +421,575 @@ public class DiskRenderManager extends Thread implements Renderer {
     }
 
     private void previewRender() throws InterruptedException {
+        long start = System.nanoTime();
+
         // Create new tracer
         LargeDiskRenderer tracer = new LargeDiskRenderer(bufferedScene);
+        tracer.setEntities(entities());
+        Camera cam = bufferedScene.camera();
+
+        // Cull to the visible sub-octrees and load them while the camera rays are generated
+        CameraFrustum frustum = CameraFrustum.fromCamera(cam, bufferedScene.width, bufferedScene.height);
+        tracer.cullToFrustum(frustum, lastFrustum == null ? null : frustum.extrapolate(lastFrustum));
+        lastFrustum = frustum;
         tracer.start();
 
-        // Generate camera rays and start tracing
+        // Generate camera rays
+        long generateStart = System.nanoTime();
+        ArrayList<LargeDiskRenderer.CacheRay> rays = new ArrayList<>(bufferedScene.width * bufferedScene.height);
         Ray ray = new Ray();
-        Camera cam = bufferedScene.camera();
         double halfWidth = bufferedScene.width / (2.0 * bufferedScene.height);
         double invHeight = 1.0 / bufferedScene.height;
         for (int i = 0; i < bufferedScene.width; i++) {
             for (int j = 0; j < bufferedScene.height; j++) {
                 cam.calcViewRay(ray, -halfWidth + i * invHeight, -0.5 + j * invHeight);
 
-                tracer.addRay(LargeDiskRenderer.CacheRay.create(
+                rays.add(LargeDiskRenderer.CacheRay.create(
                         0, i, j,
                         LargeDiskRenderer.Float3.create((float) ray.o.x, (float) ray.o.y, (float) ray.o.z),
                         LargeDiskRenderer.Float3.create((float) ray.d.x, (float) ray.d.y, (float) ray.d.z)
                 ));
             }
         }
+        metrics.rayGeneration.record(System.nanoTime() - generateStart);
+        metrics.raysGenerated.add(rays.size());
+
+        double[] sampleBuffer = bufferedScene.getSampleBuffer();
+        ForkJoinPool pool = tracer.tracer.pool;
+
+        // Trace the in-memory proxy for an instant first frame
+        LargeDiskOctree octree = tracer.getOctree();
+        if (octree != null) {
+            BlockPalette palette = bufferedScene.getPalette();
+            EntityBvh entities = entities();
+            pool.submit(() -> rays.parallelStream().forEach(cacheRay -> {
+                if (entities != null) {
+                    entities.intersect(cacheRay);
+                }
+                octree.intersectProxy(cacheRay, palette, bufferedScene);
+                writeSample(sampleBuffer, cacheRay);
+                cacheRay.resetHit();
+            })).join();
+            finalizeFrame(pool);
+        }
+
+        // Trace coarse to fine, each pass fills in the pixels between the previous pass
+        ArrayList<LargeDiskRenderer.CacheRay> traced = new ArrayList<>(rays.size());
+        for (int pass = 0; pass < PREVIEW_STEPS.length; pass++) {
+            int step = PREVIEW_STEPS[pass];
+            int coarser = pass == 0 ? 0 : PREVIEW_STEPS[pass - 1];
+            ArrayList<LargeDiskRenderer.CacheRay> passRays = new ArrayList<>();
+            for (LargeDiskRenderer.CacheRay cacheRay : rays) {
+                if (cacheRay.x % step == 0 && cacheRay.y % step == 0
+                        && !(coarser != 0 && cacheRay.x % coarser == 0 && cacheRay.y % coarser == 0)) {
+                    passRays.add(cacheRay);
+                }
+            }
+
+            tracePreviewPass(tracer, passRays, step, sampleBuffer);
+            traced.addAll(passRays);
+
+            // Leave the remaining passes to the next preview if the camera or scene changed
+            if (sceneProvider != null && sceneProvider.pollSceneStateChange()) {
+                break;
+            }
+        }
+
+        tracer.shutdown();
+        updatePipelineStatus(traced.size(), System.nanoTime() - start);
+    }
 
+    /**
+     * Trace one preview pass, where each ray covers a step x step block of pixels.
+     * Pixels are refined from the full resolution sub-octrees as their hits become final.
+     */
+    private void tracePreviewPass(LargeDiskRenderer tracer, ArrayList<LargeDiskRenderer.CacheRay> rays, int step,
+                                  double[] sampleBuffer) throws InterruptedException {
+        ForkJoinPool pool = tracer.tracer.pool;
+        tracer.addRays(rays);
 
+        boolean[] refined = new boolean[rays.size()];
         while (!tracer.doneTracing()) {
+            Thread.sleep(REFINE_INTERVAL);
+
+            double finalDistance = tracer.finalDistance();
+            tracer.getProcessRays();
+            pool.submit(() -> IntStream.range(0, rays.size()).parallel().forEach(k -> {
+                LargeDiskRenderer.CacheRay cacheRay = rays.get(k);
+                if (!refined[k] && cacheRay.distance < finalDistance) {
+                    writeBlock(sampleBuffer, cacheRay, step);
+                    refined[k] = true;
+                }
+            })).join();
+            finalizeFrame(pool);
+        }
+
+        tracer.getProcessRays();
+        pool.submit(() -> IntStream.range(0, rays.size()).parallel().forEach(k -> {
+            if (!refined[k]) {
+                writeBlock(sampleBuffer, rays.get(k), step);
+            }
+        })).join();
+        finalizeFrame(pool);
+    }
+
+    /**
+     * Push the pipeline throughput and metrics to the status listeners.
+     */
+    private void updatePipelineStatus(long rays, long elapsedNanos) {
+        int raysPerSecond = (int) (rays * 1e9 / FastMath.max(elapsedNanos, 1));
+        if (mode == RenderMode.PREVIEW) {
+            synchronized (this) {
+                renderListeners.forEach(listener -> listener.setSamplesPerSecond(raysPerSecond));
+            }
+        }
+        sendSceneStatus(bufferedScene.sceneStatus() + "\n" + metrics.summary());
+    }
+
+    /**
+     * Render the scene to its target SPP without a scene provider or UI.
+     */
+    public void renderHeadless(Scene scene) throws InterruptedException {
+        MemoryBudget.get().setMode(RenderMode.RENDERING);
+        BatchPolicy.get().setMode(RenderMode.RENDERING);
+        synchronized (bufferedScene) {
+            scene.importMaterials();
+            bufferedScene.copyState(scene);
+            bufferedScene.copyTransients(scene);
+            entitiesStale = true;
+            resumePending = true;
+        }
+
+        // The scene does not change between passes, so they share one tracer and one cleanup of the octree
+        LargeDiskRenderer tracer = startPassTracer();
+        try {
+            while (bufferedScene.spp < bufferedScene.getTargetSpp()) {
+                renderPass(tracer);
+            }
+        } finally {
+            tracer.shutdown();
+        }
+        deleteCheckpoint();
+    }
+
+    public long getRaysTraced() {
+        return raysTraced;
+    }
+
+    /**
+     * Receives finished animation frames as ARGB pixels.
+     */
+    public interface FrameListener {
+        void frameDone(int frame, int width, int height, int[] argb);
+    }
+
+    /**
+     * Render frames along a camera path to the scene target SPP without a scene provider or UI.
+     * Frames are rendered in batches whose rays are traced together, so each sweep over the
+     * sub-octrees serves every frame in the batch.
+     */
+    public void renderAnimation(Scene scene, CameraPath path, int frames, int framesPerBatch,
+                                FrameListener listener) throws InterruptedException {
+        MemoryBudget.get().setMode(RenderMode.RENDERING);
+        BatchPolicy.get().setMode(RenderMode.RENDERING);
+        synchronized (bufferedScene) {
+            scene.importMaterials();
+            bufferedScene.copyState(scene);
+            bufferedScene.copyTransients(scene);
+            entitiesStale = true;
+        }
+
+        int width = bufferedScene.width;
+        int height = bufferedScene.height;
+        int spp = FastMath.max(1, bufferedScene.getTargetSpp());
+        Camera cam = bufferedScene.camera();
+        Camera initialCamera = new Camera(bufferedScene);
+        initialCamera.set(cam);
+
+        LargeDiskRenderer tracer = new LargeDiskRenderer(bufferedScene);
+        tracer.setEntities(entities());
+        tracer.start();
+        Vector3 sun = sunDirection();
+        try {
+            for (int first = 0; first < frames; first += framesPerBatch) {
+                int count = FastMath.min(framesPerBatch, frames - first);
+                double[][] buffers = new double[count][width * height * 3];
+
+                // Only sweep the sub-octrees some camera of the batch can see
+                ArrayList<CameraFrustum> frustums = new ArrayList<>(count);
+                for (int frame = 0; frame < count; frame++) {
+                    path.apply(cam, frames == 1 ? 0 : (first + frame) / (double) (frames - 1));
+                    frustums.add(CameraFrustum.fromCamera(cam, width, height));
+                }
+                tracer.cullToFrustums(frustums);
+
+                for (int pass = 0; pass < spp; pass++) {
+                    long startNanos = System.nanoTime();
+
+                    // Generate the rays of every frame in the batch, tagged with their frame.
+                    // They are traced whenever the ray queue share of the memory budget is full,
+                    // so each sweep serves as many frames of the batch as fit.
+                    int limit = FastMath.max(1, MemoryBudget.get().maxQueuedRays());
+                    ArrayList<LargeDiskRenderer.CacheRay> rays =
+                            new ArrayList<>(FastMath.min(limit, count * width * height));
+                    long traced = 0;
+                    long generateStart = System.nanoTime();
+                    Ray ray = new Ray();
+                    double halfWidth = width / (2.0 * height);
+                    double invHeight = 1.0 / height;
+                    for (int frame = 0; frame < count; frame++) {
+                        path.apply(cam, frames == 1 ? 0 : (first + frame) / (double) (frames - 1));
+                        for (int i = 0; i < width; i++) {
+                            for (int j = 0; j < height; j++) {
+                                cam.calcViewRay(ray, -halfWidth + (i + random.nextDouble()) * invHeight,
+                                        -0.5 + (j + random.nextDouble()) * invHeight);
+
+                                LargeDiskRenderer.CacheRay cacheRay = LargeDiskRenderer.CacheRay.create(
+                                        0, i, j,
+                                        LargeDiskRenderer.Float3.create((float) ray.o.x, (float) ray.o.y, (float) ray.o.z),
+                                        LargeDiskRenderer.Float3.create((float) ray.d.x, (float) ray.d.y, (float) ray.d.z)
+                                );
+                                cacheRay.frame = frame;
+                                rays.add(cacheRay);
+
+                                if (rays.size() == limit) {
+                                    metrics.rayGeneration.record(System.nanoTime() - generateStart);
+                                    traceAnimationRays(tracer, rays, buffers, pass, sun, width);
+                                    traced += rays.size();
+                                    rays.clear();
+                                    generateStart = System.nanoTime();
+                                }
+                            }
+                        }
+                    }
+                    if (!rays.isEmpty()) {
+                        metrics.rayGeneration.record(System.nanoTime() - generateStart);
+                        traceAnimationRays(tracer, rays, buffers, pass, sun, width);
+                        traced += rays.size();
+                    }
+
+                    raysTraced += traced;
+                    updatePipelineStatus(traced, System.nanoTime() - startNanos);
+                }
+
+                for (int frame = 0; frame < count; frame++) {
+                    listener.frameDone(first + frame, width, height, toArgb(buffers[frame], width, height));
+                }
+            }
+        } finally {
+            cam.set(initialCamera);
+            tracer.shutdown();
+        }
+    }
+
+    /**
+     * Trace rays of an animation pass and add their samples to the frame buffers of the batch.
+     */
+    private void traceAnimationRays(LargeDiskRenderer tracer, ArrayList<LargeDiskRenderer.CacheRay> rays,
+                                    double[][] buffers, int pass, Vector3 sun, int width) throws InterruptedException {
+        metrics.raysGenerated.add(rays.size());
+        tracer.addRays(rays);
+        tracer.awaitTracing();
+        tracer.getProcessRays();
+        LargeDiskRenderer.CacheRay[] shadows = sun == null ? null : traceShadows(tracer, rays, sun);
+
+        // Demultiplex the samples into the frame buffers
+        double sinv = 1.0 / (pass + 1);
+        tracer.tracer.pool.submit(() -> IntStream.range(0, rays.size()).parallel().forEach(k -> {
+            LargeDiskRenderer.CacheRay cacheRay = rays.get(k);
+            double light = light(cacheRay, shadows == null ? null : shadows[k], sun);
+            double[] buffer = buffers[cacheRay.frame];
+            LargeDiskRenderer.Float3 color = cacheRay.resolveColor();
+            int offset = (cacheRay.x + cacheRay.y * width) * 3;
+            buffer[offset + 0] = (buffer[offset + 0] * pass + color.x * light) * sinv;
+            buffer[offset + 1] = (buffer[offset + 1] * pass + color.y * light) * sinv;
+            buffer[offset + 2] = (buffer[offset + 2] * pass + color.z * light) * sinv;
+        })).join();
+    }
+
+    /**
+     * Gamma correct a linear RGB buffer into ARGB pixels.
+     */
+    private static int[] toArgb(double[] buffer, int width, int height) {
+        int[] argb = new int[width * height];
+        for (int i = 0; i < argb.length; i++) {
+            argb[i] = ColorUtil.getRGB(gamma(buffer[i * 3]), gamma(buffer[i * 3 + 1]), gamma(buffer[i * 3 + 2]));
+        }
+        return argb;
+    }
+
+    private static double gamma(double value) {
+        return FastMath.min(1, FastMath.pow(FastMath.max(0, value), 1 / 2.2));
+    }
+
+    /**
+     * Create and start a tracer for final render passes, culled to the camera frustum.
+     * The caller shuts it down after its last pass.
+     */
+    private LargeDiskRenderer startPassTracer() {
+        LargeDiskRenderer tracer = new LargeDiskRenderer(bufferedScene);
+        tracer.setEntities(entities());
+        Camera cam = bufferedScene.camera();
+        tracer.cullToFrustum(CameraFrustum.fromCamera(cam, bufferedScene.width, bufferedScene.height), null);
+        tracer.start();
+        return tracer;
+    }
+
+    /**
+     * Trace one jittered sample per pixel through the disk pipeline and add it to the sample buffer.
+     * The pass is checkpointed at sub-octree boundaries when a checkpoint is due, and continues a pass
+     * from the checkpoint of an earlier run.
+     */
+    private void renderPass(LargeDiskRenderer tracer) throws InterruptedException {
+        long start = System.currentTimeMillis();
+        long startNanos = System.nanoTime();
+
+        LargeDiskOctree octree = tracer.getOctree();
+        RenderCheckpoint.Pass resumed = resumeCheckpoint(octree);
+        if (bufferedScene.spp >= bufferedScene.getTargetSpp()) {
+            // The checkpoint already reached the target
+            return;
+        }
+        long cellFingerprint = octree == null ? 0 : octree.cellFingerprint();
+        ArrayList<LargeDiskRenderer.CacheRay> rays;
+        inPass = true;
+        try {
+            if (resumed != null && resumed.phase == RenderCheckpoint.SHADOW) {
+                rays = resumed.cameraRays;
+            } else {
+                rays = traceCameraRays(tracer, cellFingerprint, resumed == null ? null : resumed.rays);
+            }
+
+            Vector3 sun = sunDirection();
+            LargeDiskRenderer.CacheRay[] shadows = null;
+            if (sun != null) {
+                tracer.setCheckpointListener(checkpointListener(cellFingerprint, RenderCheckpoint.SHADOW, rays));
+                shadows = traceShadows(tracer, rays, sun,
+                        resumed != null && resumed.phase == RenderCheckpoint.SHADOW ? resumed.rays : null);
+            }
+            tracer.setCheckpointListener(null);
+            addSamples(tracer, rays, shadows, sun, start);
+        } finally {
+            synchronized (checkpointMonitor) {
+                inPass = false;
+                checkpointMonitor.notifyAll();
+            }
+        }
+        if (checkpointDue()) {
+            writeCheckpoint(null);
+        }
+
+        updatePipelineStatus(rays.size(), System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Generate and trace one jittered camera ray per pixel. Rays in flight from a checkpoint are traced first,
+     * only the pixels they do not cover get new rays.
+     */
+    private ArrayList<LargeDiskRenderer.CacheRay> traceCameraRays(LargeDiskRenderer tracer, long cellFingerprint,
+                                                                  RenderCheckpoint.InFlight resumed) throws InterruptedException {
+        Camera cam = bufferedScene.camera();
+        ArrayList<LargeDiskRenderer.CacheRay> rays = new ArrayList<>(bufferedScene.width * bufferedScene.height);
+        tracer.setCheckpointListener(checkpointListener(cellFingerprint, RenderCheckpoint.CAMERA, new ArrayList<>()));
+        boolean[] generated = new boolean[bufferedScene.width * bufferedScene.height];
+        if (resumed != null) {
+            tracer.resume(resumed);
+            for (LargeDiskRenderer.CacheRay cacheRay : resumed.rays()) {
+                rays.add(cacheRay);
+                generated[cacheRay.x + cacheRay.y * bufferedScene.width] = true;
+            }
+        }
+
+        long generateStart = System.nanoTime();
+        long generateTime = 0;
+        int resumedRays = rays.size();
+        Ray ray = new Ray();
+        double halfWidth = bufferedScene.width / (2.0 * bufferedScene.height);
+        double invHeight = 1.0 / bufferedScene.height;
+        for (int i = 0; i < bufferedScene.width; i++) {
+            for (int j = 0; j < bufferedScene.height; j++) {
+                if (generated[i + j * bufferedScene.width]) continue;
+                cam.calcViewRay(ray, -halfWidth + (i + random.nextDouble()) * invHeight,
+                        -0.5 + (j + random.nextDouble()) * invHeight);
+
+                LargeDiskRenderer.CacheRay cacheRay = LargeDiskRenderer.CacheRay.create(
+                        0, i, j,
+                        LargeDiskRenderer.Float3.create((float) ray.o.x, (float) ray.o.y, (float) ray.o.z),
+                        LargeDiskRenderer.Float3.create((float) ray.d.x, (float) ray.d.y, (float) ray.d.z)
+                );
+                rays.add(cacheRay);
+
+                // Adding may block on a full queue, which is not ray generation time
+                long now = System.nanoTime();
+                generateTime += now - generateStart;
+                tracer.addRay(cacheRay);
+                generateStart = System.nanoTime();
+            }
+        }
+        metrics.rayGeneration.record(generateTime);
+        metrics.raysGenerated.add(rays.size() - resumedRays);
+        tracer.awaitTracing();
+        tracer.getProcessRays();
+        return rays;
+    }
+
+    /**
+     * Add the samples of a traced pass to the sample buffer.
+     */
+    private void addSamples(LargeDiskRenderer tracer, ArrayList<LargeDiskRenderer.CacheRay> rays,
+                            LargeDiskRenderer.CacheRay[] shadows, Vector3 sun, long start) {
+        ForkJoinPool pool = tracer.tracer.pool;
+        synchronized (bufferedScene) {
             double[] sampleBuffer = bufferedScene.getSampleBuffer();
-            tracer.tracer.pool.submit(() -> tracer.getProcessRays().parallelStream().forEach(cacheRay -> {
+            int spp = bufferedScene.spp;
+            double sinv = 1.0 / (spp + 1);
+            pool.submit(() -> IntStream.range(0, rays.size()).parallel().forEach(k -> {
+                LargeDiskRenderer.CacheRay cacheRay = rays.get(k);
+                double light = light(cacheRay, shadows == null ? null : shadows[k], sun);
+                LargeDiskRenderer.Float3 color = cacheRay.resolveColor();
                 int offset = (cacheRay.x + cacheRay.y * bufferedScene.canvasWidth()) * 3;
-                sampleBuffer[offset + 0] = cacheRay.color.x;
-                sampleBuffer[offset + 1] = cacheRay.color.y;
-                sampleBuffer[offset + 2] = cacheRay.color.z;
-                bufferedScene.finalizePixel(cacheRay.x, cacheRay.y);
+                sampleBuffer[offset + 0] = (sampleBuffer[offset + 0] * spp + color.x * light) * sinv;
+                sampleBuffer[offset + 1] = (sampleBuffer[offset + 1] * spp + color.y * light) * sinv;
+                sampleBuffer[offset + 2] = (sampleBuffer[offset + 2] * spp + color.z * light) * sinv;
             })).join();
+
+            bufferedScene.spp += 1;
+            bufferedScene.renderTime += System.currentTimeMillis() - start;
+            raysTraced += rays.size();
+        }
+        finalizeFrame(pool);
+    }
+
+    private void writeSample(double[] sampleBuffer, LargeDiskRenderer.CacheRay cacheRay) {
+        LargeDiskRenderer.Float3 color = cacheRay.resolveColor();
+        int offset = (cacheRay.x + cacheRay.y * bufferedScene.canvasWidth()) * 3;
+        sampleBuffer[offset + 0] = color.x;
+        sampleBuffer[offset + 1] = color.y;
+        sampleBuffer[offset + 2] = color.z;
+    }
+
+    /**
+     * Write a sample to the step x step block of pixels starting at the ray pixel.
+     */
+    private void writeBlock(double[] sampleBuffer, LargeDiskRenderer.CacheRay cacheRay, int step) {
+        int xEnd = FastMath.min(cacheRay.x + step, bufferedScene.width);
+        int yEnd = FastMath.min(cacheRay.y + step, bufferedScene.height);
+        LargeDiskRenderer.Float3 color = cacheRay.resolveColor();
+        for (int y = cacheRay.y; y < yEnd; y++) {
+            for (int x = cacheRay.x; x < xEnd; x++) {
+                int offset = (x + y * bufferedScene.canvasWidth()) * 3;
+                sampleBuffer[offset + 0] = color.x;
+                sampleBuffer[offset + 1] = color.y;
+                sampleBuffer[offset + 2] = color.z;
+            }
+        }
+    }
+
+    /**
+     * Unit vector towards the sun, or null if the sun is below the horizon or sun light is off.
+     */
+    private Vector3 sunDirection() {
+        if (!sunLight) {
+            return null;
+        }
+        double azimuth = bufferedScene.sun().getAzimuth();
+        double altitude = bufferedScene.sun().getAltitude();
+        if (altitude <= 0) {
+            return null;
+        }
+        return new Vector3(FastMath.cos(azimuth) * FastMath.cos(altitude), FastMath.sin(altitude),
+                FastMath.sin(azimuth) * FastMath.cos(altitude));
+    }
+
+    /**
+     * Trace an occlusion ray towards the sun from every hit that faces it.
+     * Returns the shadow ray of each camera ray, null where none was needed.
+     */
+    private LargeDiskRenderer.CacheRay[] traceShadows(LargeDiskRenderer tracer, ArrayList<LargeDiskRenderer.CacheRay> rays,
+                                                      Vector3 sun) throws InterruptedException {
+        return traceShadows(tracer, rays, sun, null);
+    }
+
+    /**
+     * Trace the shadow rays of a pass, continuing the shadow rays in flight from a checkpoint if there are any.
+     */
+    private LargeDiskRenderer.CacheRay[] traceShadows(LargeDiskRenderer tracer, ArrayList<LargeDiskRenderer.CacheRay> rays,
+                                                      Vector3 sun, RenderCheckpoint.InFlight resumed) throws InterruptedException {
+        LargeDiskRenderer.CacheRay[] shadows = new LargeDiskRenderer.CacheRay[rays.size()];
+        if (resumed != null) {
+            // Camera rays and their shadow rays are matched by pixel
+            int[] rayIndex = new int[bufferedScene.width * bufferedScene.height];
+            for (int k = 0; k < rays.size(); k++) {
+                rayIndex[rays.get(k).x + rays.get(k).y * bufferedScene.width] = k;
+            }
+            for (LargeDiskRenderer.CacheRay shadow : resumed.rays()) {
+                shadows[rayIndex[shadow.x + shadow.y * bufferedScene.width]] = shadow;
+            }
+            tracer.resume(resumed);
+            tracer.awaitTracing();
+            tracer.getProcessRays();
+            return shadows;
+        }
+
+        ArrayList<LargeDiskRenderer.CacheRay> batch = new ArrayList<>();
+        LargeDiskRenderer.Float3 direction = LargeDiskRenderer.Float3.create((float) sun.x, (float) sun.y, (float) sun.z);
+        for (int k = 0; k < rays.size(); k++) {
+            LargeDiskRenderer.CacheRay cacheRay = rays.get(k);
+            if (cacheRay.distance == Float.POSITIVE_INFINITY || sunCosine(cacheRay, sun) <= 0) {
+                continue;
+            }
+
+            LargeDiskRenderer.Float3 origin = LargeDiskRenderer.Float3.create(
+                    cacheRay.origin.x + cacheRay.direction.x * cacheRay.distance + cacheRay.normal.x * SHADOW_BIAS,
+                    cacheRay.origin.y + cacheRay.direction.y * cacheRay.distance + cacheRay.normal.y * SHADOW_BIAS,
+                    cacheRay.origin.z + cacheRay.direction.z * cacheRay.distance + cacheRay.normal.z * SHADOW_BIAS);
+            shadows[k] = LargeDiskRenderer.CacheRay.createOcclusion(cacheRay.depth + 1, cacheRay.x, cacheRay.y,
+                    origin, direction, Float.POSITIVE_INFINITY);
+            shadows[k].frame = cacheRay.frame;
+            batch.add(shadows[k]);
+        }
+        tracer.addRays(batch);
+        tracer.awaitTracing();
+        tracer.getProcessRays();
+        return shadows;
+    }
+
+    private static double sunCosine(LargeDiskRenderer.CacheRay cacheRay, Vector3 sun) {
+        return cacheRay.normal.x * sun.x + cacheRay.normal.y * sun.y + cacheRay.normal.z * sun.z;
+    }
+
+    /**
+     * Direct light at the hit of a camera ray. Without a shadow ray the surface is assumed to be lit.
+     * Hits keep their own colour if sun light is off.
+     */
+    private double light(LargeDiskRenderer.CacheRay cacheRay, LargeDiskRenderer.CacheRay shadow, Vector3 sun) {
+        if (!sunLight) {
+            return 1;
         }
+        if (sun == null) {
+            return AMBIENT;
+        }
+        if (shadow != null && shadow.isOccluded()) {
+            return AMBIENT;
+        }
+        double cos = FastMath.max(0, sunCosine(cacheRay, sun));
+        return AMBIENT + (1 - AMBIENT) * bufferedScene.sun().getIntensity() * cos;
+    }
+
+    /**
+     * Finalize every pixel of the sample buffer and show it.
+     */
+    private void finalizeFrame(ForkJoinPool pool) {
+        int width = bufferedScene.width;
+        int height = bufferedScene.height;
+        pool.submit(() -> IntStream.range(0, height).parallel().forEach(y -> {
+            for (int x = 0; x < width; x++) {
+                bufferedScene.finalizePixel(x, y);
+            }
+        })).join();
 
         bufferedScene.swapBuffers();
         canvas.repaint();
-
-        tracer.interrupt();
     }
 
     private void updateRenderProgress() {
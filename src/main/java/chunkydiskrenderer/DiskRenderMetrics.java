@@ -0,0 +1,201 @@
+package chunkydiskrenderer;
+
+import org.apache.commons.math3.util.FastMath;
+import se.llbit.log.Log;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and histograms for the stages of the disk render pipeline.
+ * Recording uses striped adders so hot paths do not contend, totals are aggregated when read.
+ * Registered with JMX as chunkydiskrenderer:type=DiskRenderMetrics.
+ */
+public class DiskRenderMetrics implements DiskRenderMetricsMBean {
+    private static final DiskRenderMetrics INSTANCE = new DiskRenderMetrics();
+
+    static {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(INSTANCE,
+                    new ObjectName("chunkydiskrenderer:type=DiskRenderMetrics"));
+        } catch (JMException e) {
+            Log.warn("Could not register disk renderer metrics", e);
+        }
+    }
+
+    public final LongAdder raysGenerated = new LongAdder();
+    public final MetricHistogram rayGeneration = new MetricHistogram();
+    public final LongAdder queueDepth = new LongAdder();
+    public final MetricHistogram sweep = new MetricHistogram();
+
+    public final LongAdder bytesRead = new LongAdder();
+    public final LongAdder bytesDecompressed = new LongAdder();
+    public final MetricHistogram readLatency = new MetricHistogram();
+    public final MetricHistogram decompressLatency = new MetricHistogram();
+
+    public final MetricHistogram intersect = new MetricHistogram();
+    public final MetricHistogram raysPerSubOctree = new MetricHistogram();
+
+    public final LongAdder cacheHits = new LongAdder();
+    public final LongAdder cacheMisses = new LongAdder();
+
+    private long gcCountBase;
+    private long gcTimeBase;
+
+    private DiskRenderMetrics() {
+        gcCountBase = gcCount();
+        gcTimeBase = gcTime();
+    }
+
+    public static DiskRenderMetrics get() {
+        return INSTANCE;
+    }
+
+    private static double millis(double nanos) {
+        return nanos / 1e6;
+    }
+
+    private static long gcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += FastMath.max(gc.getCollectionCount(), 0);
+        }
+        return count;
+    }
+
+    private static long gcTime() {
+        long time = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            time += FastMath.max(gc.getCollectionTime(), 0);
+        }
+        return time;
+    }
+
+    @Override
+    public long getRaysGenerated() {
+        return raysGenerated.sum();
+    }
+
+    @Override
+    public double getRayGenerationTime() {
+        return millis(rayGeneration.sum());
+    }
+
+    @Override
+    public long getQueueDepth() {
+        return queueDepth.sum();
+    }
+
+    @Override
+    public long getSweeps() {
+        return sweep.count();
+    }
+
+    @Override
+    public long getSubOctreesLoaded() {
+        return decompressLatency.count();
+    }
+
+    @Override
+    public long getBytesRead() {
+        return bytesRead.sum();
+    }
+
+    @Override
+    public long getBytesDecompressed() {
+        return bytesDecompressed.sum();
+    }
+
+    @Override
+    public double getReadLatencyMean() {
+        return millis(readLatency.mean());
+    }
+
+    @Override
+    public double getReadLatencyP99() {
+        return millis(readLatency.percentile(0.99));
+    }
+
+    @Override
+    public double getDecompressLatencyMean() {
+        return millis(decompressLatency.mean());
+    }
+
+    @Override
+    public double getDecompressLatencyP99() {
+        return millis(decompressLatency.percentile(0.99));
+    }
+
+    @Override
+    public double getIntersectTime() {
+        return millis(intersect.sum());
+    }
+
+    @Override
+    public double getRaysPerSubOctreeMean() {
+        return raysPerSubOctree.mean();
+    }
+
+    @Override
+    public long getRaysPerSubOctreeMax() {
+        return raysPerSubOctree.max();
+    }
+
+    @Override
+    public long getCacheHits() {
+        return cacheHits.sum();
+    }
+
+    @Override
+    public long getCacheMisses() {
+        return cacheMisses.sum();
+    }
+
+    @Override
+    public double getCacheHitRate() {
+        long hits = cacheHits.sum();
+        long total = hits + cacheMisses.sum();
+        return total == 0 ? 0 : hits / (double) total;
+    }
+
+    @Override
+    public long getGcCount() {
+        return gcCount() - gcCountBase;
+    }
+
+    @Override
+    public long getGcTime() {
+        return gcTime() - gcTimeBase;
+    }
+
+    @Override
+    public synchronized void reset() {
+        raysGenerated.reset();
+        rayGeneration.reset();
+        sweep.reset();
+        bytesRead.reset();
+        bytesDecompressed.reset();
+        readLatency.reset();
+        decompressLatency.reset();
+        intersect.reset();
+        raysPerSubOctree.reset();
+        cacheHits.reset();
+        cacheMisses.reset();
+        gcCountBase = gcCount();
+        gcTimeBase = gcTime();
+    }
+
+    /**
+     * A short human readable summary for status listeners.
+     */
+    public String summary() {
+        return String.format(Locale.ROOT,
+                "Sub-octrees loaded: %d (%.1f MB read, %.1f ms p99), cache hit rate: %.0f%%, intersect: %.0f ms, batch: %d rays, GC: %d ms",
+                getSubOctreesLoaded(), getBytesRead() / 1e6, getReadLatencyP99() + getDecompressLatencyP99(),
+                getCacheHitRate() * 100, getIntersectTime(), BatchPolicy.get().targetRays(), getGcTime());
+    }
+}
@@ -0,0 +1,46 @@
+package chunkydiskrenderer;
+
+/**
+ * JMX view of the disk renderer pipeline metrics. Times are in milliseconds.
+ */
+public interface DiskRenderMetricsMBean {
+    long getRaysGenerated();
+
+    double getRayGenerationTime();
+
+    long getQueueDepth();
+
+    long getSweeps();
+
+    long getSubOctreesLoaded();
+
+    long getBytesRead();
+
+    long getBytesDecompressed();
+
+    double getReadLatencyMean();
+
+    double getReadLatencyP99();
+
+    double getDecompressLatencyMean();
+
+    double getDecompressLatencyP99();
+
+    double getIntersectTime();
+
+    double getRaysPerSubOctreeMean();
+
+    long getRaysPerSubOctreeMax();
+
+    long getCacheHits();
+
+    long getCacheMisses();
+
+    double getCacheHitRate();
+
+    long getGcCount();
+
+    long getGcTime();
+
+    void reset();
+}
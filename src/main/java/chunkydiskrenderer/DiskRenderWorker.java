@@ -0,0 +1,293 @@
+package chunkydiskrenderer;
+
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntArrays;
+import org.apache.commons.math3.util.FastMath;
+import se.llbit.chunky.PersistentSettings;
+import se.llbit.chunky.chunk.BlockPalette;
+import se.llbit.chunky.main.Chunky;
+import se.llbit.chunky.renderer.scene.Scene;
+import se.llbit.log.Log;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+/**
+ * A worker process that owns a share of the sub-octrees of a LargeDiskOctree and intersects rays with them.
+ * The coordinator sends the palette and the owned sub-octrees once, then batches of rays, each with the
+ * owned sub-octrees on its path. The worker replies with the closest hit of every ray in its sub-octrees.
+ * Sub-octree files are opened by path, so workers need the same view of the files as the coordinator and the
+ * same chunkydiskrenderer.storage roots. Paths outside those roots are rejected.
+ *
+ * Workers do not authenticate coordinators, so they only listen on the loopback interface unless another
+ * address is given with -bind.
+ *
+ * Usage: -worker &lt;port&gt; [-bind &lt;address&gt;]
+ */
+public class DiskRenderWorker {
+    static final int MAGIC = 0x44524b31;
+    static final int BATCH = 1;
+    static final int CLOSE = 2;
+
+    // Number of octrees to load ahead of the octree being traced
+    private static final int PREFETCH_AHEAD = 2;
+    // Sub-octree indices at or above this are rejected, far more than any world has
+    private static final int MAX_CELLS = 1 << 24;
+    // Rays of a batch are read into a list growing from this size, so memory follows the rays actually sent
+    private static final int INITIAL_BATCH = 1 << 12;
+
+    private final BlockPalette palette;
+    private final Scene scene = new Scene();
+    private final ArrayList<File> octrees;
+    private final SubOctreeCache cache;
+    private final ForkJoinPool pool = new ForkJoinPool(PersistentSettings.getNumThreads());
+
+    private DiskRenderWorker(BlockPalette palette, ArrayList<File> octrees) {
+        this.palette = palette;
+        this.octrees = octrees;
+        this.cache = new SubOctreeCache(octrees);
+    }
+
+    public static void main(String[] args) {
+        int port = -1;
+        InetAddress bind = InetAddress.getLoopbackAddress();
+        try {
+            for (int i = 0; i + 1 < args.length; i++) {
+                if (args[i].equals("-worker")) {
+                    port = Integer.parseInt(args[i + 1]);
+                } else if (args[i].equals("-bind")) {
+                    bind = InetAddress.getByName(args[i + 1]);
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            port = -1;
+        }
+        if (port < 0) {
+            System.err.println("Usage: -worker <port> [-bind <address>]");
+            System.exit(1);
+        }
+
+        Chunky.loadDefaultTextures();
+        SubOctreeStorage storage = SubOctreeStorage.fromSystemProperties();
+        try (ServerSocket server = new ServerSocket(port, 0, bind)) {
+            Log.info("Disk render worker listening on " + server.getLocalSocketAddress());
+            while (true) {
+                Socket socket = server.accept();
+                Thread connection = new Thread(() -> serve(socket, storage),
+                        "Disk Render Worker " + socket.getRemoteSocketAddress());
+                connection.setDaemon(true);
+                connection.start();
+            }
+        } catch (IOException e) {
+            Log.error("Disk render worker failed", e);
+            System.exit(1);
+        }
+    }
+
+    private static void serve(Socket socket, SubOctreeStorage storage) {
+        DiskRenderWorker worker = null;
+        try (Socket s = socket;
+             DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()))) {
+            s.setTcpNoDelay(true);
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a disk render coordinator");
+            }
+
+            BlockPalette palette = BlockPalette.read(in);
+            ArrayList<File> octrees = new ArrayList<>();
+            int cells = in.readInt();
+            if (cells < 0 || cells > MAX_CELLS) {
+                throw new IOException("Invalid sub-octree count " + cells);
+            }
+            for (int i = 0; i < cells; i++) {
+                int index = in.readInt();
+                if (index < 0 || index >= MAX_CELLS) {
+                    throw new IOException("Invalid sub-octree index " + index);
+                }
+                File file = new File(in.readUTF());
+                if (!storage.contains(file)) {
+                    throw new IOException("Sub-octree " + file + " is not in the storage roots");
+                }
+                while (octrees.size() <= index) {
+                    octrees.add(null);
+                }
+                octrees.set(index, file);
+            }
+            worker = new DiskRenderWorker(palette, octrees);
+
+            while (true) {
+                int command = in.readInt();
+                if (command == CLOSE) break;
+                if (command != BATCH) {
+                    throw new IOException("Unknown command " + command);
+                }
+                worker.traceBatch(in, out);
+                out.flush();
+            }
+        } catch (IOException e) {
+            Log.warn("Disk render coordinator connection closed", e);
+        } catch (InterruptedException e) {
+            // Stopped
+        } finally {
+            if (worker != null) {
+                worker.pool.shutdown();
+            }
+        }
+    }
+
+    private void traceBatch(DataInputStream in, DataOutputStream out) throws IOException, InterruptedException {
+        int count = in.readInt();
+        if (count < 0) {
+            throw new IOException("Invalid ray count " + count);
+        }
+        ArrayList<LargeDiskRenderer.CacheRay> rays = new ArrayList<>(FastMath.min(count, INITIAL_BATCH));
+        Int2ObjectOpenHashMap<IntArrayList> bins = new Int2ObjectOpenHashMap<>();
+        for (int i = 0; i < count; i++) {
+            rays.add(readRay(in));
+            int cells = in.readInt();
+            if (cells < 0 || cells > octrees.size()) {
+                throw new IOException("Invalid path length " + cells);
+            }
+            for (int j = 0; j < cells; j++) {
+                int index = in.readInt();
+                if (index < 0 || index >= octrees.size() || octrees.get(index) == null) {
+                    throw new IOException("Sub-octree " + index + " is not owned by this worker");
+                }
+                bins.computeIfAbsent(index, k -> new IntArrayList()).add(i);
+            }
+        }
+
+        int[] order = bins.keySet().toIntArray();
+        IntArrays.quickSort(order);
+        for (int i = 0; i < PREFETCH_AHEAD && i < order.length; i++) {
+            cache.prefetch(order[i]);
+        }
+        for (int i = 0; i < order.length; i++) {
+            if (i + PREFETCH_AHEAD < order.length) {
+                cache.prefetch(order[i + PREFETCH_AHEAD]);
+            }
+            MiniPackedOctree octree = cache.get(order[i]);
+            if (octree == null) continue;
+
+            IntArrayList bin = bins.get(order[i]);
+            pool.submit(() -> IntStream.range(0, bin.size()).parallel().forEach(j -> {
+                LargeDiskRenderer.CacheRay ray = rays.get(bin.getInt(j));
+                if (!ray.isOccluded()) {
+                    octree.intersect(ray, palette, scene);
+                }
+            })).join();
+        }
+
+        out.writeInt(count);
+        for (LargeDiskRenderer.CacheRay ray : rays) {
+            writeHit(out, ray);
+        }
+    }
+
+    /**
+     * Write the origin, direction and current hit bound of a ray.
+     */
+    static void writeRay(DataOutputStream out, LargeDiskRenderer.CacheRay ray) throws IOException {
+        out.writeFloat(ray.origin.x);
+        out.writeFloat(ray.origin.y);
+        out.writeFloat(ray.origin.z);
+        out.writeFloat(ray.direction.x);
+        out.writeFloat(ray.direction.y);
+        out.writeFloat(ray.direction.z);
+        out.writeBoolean(ray.occlusion);
+        out.writeFloat(ray.maxDistance);
+        out.writeFloat(ray.distance);
+    }
+
+    static LargeDiskRenderer.CacheRay readRay(DataInputStream in) throws IOException {
+        LargeDiskRenderer.Float3 origin = LargeDiskRenderer.Float3.create(in.readFloat(), in.readFloat(), in.readFloat());
+        LargeDiskRenderer.Float3 direction = LargeDiskRenderer.Float3.create(in.readFloat(), in.readFloat(), in.readFloat());
+        boolean occlusion = in.readBoolean();
+        float maxDistance = in.readFloat();
+        LargeDiskRenderer.CacheRay ray = occlusion
+                ? LargeDiskRenderer.CacheRay.createOcclusion(0, 0, 0, origin, direction, maxDistance)
+                : LargeDiskRenderer.CacheRay.create(0, 0, 0, origin, direction);
+        ray.distance = in.readFloat();
+        return ray;
+    }
+
+    /**
+     * Write the hit and translucent segments of a traced ray.
+     */
+    static void writeHit(DataOutputStream out, LargeDiskRenderer.CacheRay ray) throws IOException {
+        out.writeFloat(ray.distance);
+        writeFloat3(out, ray.normal);
+        writeFloat3(out, ray.color);
+        writeFloat3(out, ray.emittance);
+
+        int segments = 0;
+        for (LargeDiskRenderer.Segment segment = ray.segments; segment != null; segment = segment.next) {
+            segments++;
+        }
+        out.writeInt(segments);
+        for (LargeDiskRenderer.Segment segment = ray.segments; segment != null; segment = segment.next) {
+            out.writeFloat(segment.tEnter);
+            out.writeFloat(segment.tExit);
+            out.writeInt(segment.entryMedium);
+            out.writeInt(segment.exitMedium);
+            out.writeFloat(segment.boundaryR);
+            out.writeFloat(segment.boundaryG);
+            out.writeFloat(segment.boundaryB);
+            out.writeFloat(segment.boundaryAlpha);
+            out.writeFloat(segment.r);
+            out.writeFloat(segment.g);
+            out.writeFloat(segment.b);
+            out.writeFloat(segment.transmittance);
+        }
+    }
+
+    /**
+     * Read a hit written by writeHit and merge it into a ray: a closer hit replaces the current one
+     * and translucent segments are added.
+     */
+    static void mergeHit(DataInputStream in, LargeDiskRenderer.CacheRay ray) throws IOException {
+        float distance = in.readFloat();
+        LargeDiskRenderer.Float3 normal = readFloat3(in);
+        LargeDiskRenderer.Float3 color = readFloat3(in);
+        LargeDiskRenderer.Float3 emittance = readFloat3(in);
+        if (distance < ray.distance) {
+            ray.normal = normal;
+            ray.color = color;
+            ray.emittance = emittance;
+            ray.distance = distance;
+        }
+
+        int segments = in.readInt();
+        for (int i = 0; i < segments; i++) {
+            LargeDiskRenderer.Segment segment = ray.addSegment(in.readFloat());
+            segment.tExit = in.readFloat();
+            segment.entryMedium = in.readInt();
+            segment.exitMedium = in.readInt();
+            segment.boundaryR = in.readFloat();
+            segment.boundaryG = in.readFloat();
+            segment.boundaryB = in.readFloat();
+            segment.boundaryAlpha = in.readFloat();
+            segment.r = in.readFloat();
+            segment.g = in.readFloat();
+            segment.b = in.readFloat();
+            segment.transmittance = in.readFloat();
+        }
+    }
+
+    private static void writeFloat3(DataOutputStream out, LargeDiskRenderer.Float3 v) throws IOException {
+        out.writeFloat(v.x);
+        out.writeFloat(v.y);
+        out.writeFloat(v.z);
+    }
+
+    private static LargeDiskRenderer.Float3 readFloat3(DataInputStream in) throws IOException {
+        return LargeDiskRenderer.Float3.create(in.readFloat(), in.readFloat(), in.readFloat());
+    }
+}
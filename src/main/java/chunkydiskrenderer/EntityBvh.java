@@ -0,0 +1,225 @@
+package chunkydiskrenderer;
+
+import it.unimi.dsi.fastutil.doubles.DoubleArrayList;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import se.llbit.chunky.entity.Entity;
+import se.llbit.chunky.renderer.scene.Scene;
+import se.llbit.math.AABB;
+import se.llbit.math.Ray;
+import se.llbit.math.Vector3;
+import se.llbit.math.Vector3i;
+import se.llbit.math.primitive.Primitive;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * A compact in-memory bounding volume hierarchy over the entity primitives of a scene.
+ * Nodes are stored depth first in flat arrays, the left child of a node directly follows it.
+ */
+public class EntityBvh {
+    private static final int MAX_LEAF_SIZE = 4;
+
+    private final Primitive[] primitives;
+    // Bounds of each node: xmin, xmax, ymin, ymax, zmin, zmax
+    private final double[] bounds;
+    // Inner nodes: index of the right child. Leaves: -(first primitive + 1)
+    private final int[] children;
+    // Number of primitives in each leaf, 0 for inner nodes
+    private final int[] counts;
+
+    private EntityBvh(Primitive[] primitives, double[] bounds, int[] children, int[] counts) {
+        this.primitives = primitives;
+        this.bounds = bounds;
+        this.children = children;
+        this.counts = counts;
+    }
+
+    /**
+     * Build a hierarchy over the entities and actors of a scene, in octree coordinates.
+     * Returns null if the scene has no entity primitives.
+     */
+    public static EntityBvh build(Scene scene) {
+        Vector3i origin = scene.getOrigin();
+        Vector3 offset = new Vector3(-origin.x, -origin.y, -origin.z);
+        ArrayList<Primitive> primitives = new ArrayList<>();
+        addPrimitives(scene.getEntities(), offset, primitives);
+        addPrimitives(scene.getActors(), offset, primitives);
+        return build(primitives);
+    }
+
+    private static void addPrimitives(Collection<Entity> entities, Vector3 offset, ArrayList<Primitive> out) {
+        if (entities == null) return;
+        for (Entity entity : entities) {
+            out.addAll(entity.primitives(offset));
+        }
+    }
+
+    public static EntityBvh build(Collection<Primitive> input) {
+        if (input.isEmpty()) return null;
+
+        Primitive[] primitives = input.toArray(new Primitive[0]);
+        AABB[] boxes = new AABB[primitives.length];
+        for (int i = 0; i < primitives.length; i++) {
+            boxes[i] = primitives[i].bounds();
+        }
+
+        DoubleArrayList bounds = new DoubleArrayList();
+        IntArrayList children = new IntArrayList();
+        IntArrayList counts = new IntArrayList();
+        buildNode(primitives, boxes, 0, primitives.length, bounds, children, counts);
+        return new EntityBvh(primitives, bounds.toDoubleArray(), children.toIntArray(), counts.toIntArray());
+    }
+
+    private static int buildNode(Primitive[] primitives, AABB[] boxes, int start, int end,
+                                 DoubleArrayList bounds, IntArrayList children, IntArrayList counts) {
+        int node = counts.size();
+        double[] box = {Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY,
+                Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY};
+        double[] centroids = {Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY,
+                Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY};
+        for (int i = start; i < end; i++) {
+            AABB b = boxes[i];
+            include(box, b.xmin, b.xmax, b.ymin, b.ymax, b.zmin, b.zmax);
+            double cx = centroid(b, 0), cy = centroid(b, 1), cz = centroid(b, 2);
+            include(centroids, cx, cx, cy, cy, cz, cz);
+        }
+        bounds.addElements(bounds.size(), box);
+        children.add(0);
+        counts.add(0);
+
+        if (end - start <= MAX_LEAF_SIZE) {
+            children.set(node, -(start + 1));
+            counts.set(node, end - start);
+            return node;
+        }
+
+        // Split at the median centroid of the widest axis
+        int axis = 0;
+        double widest = centroids[1] - centroids[0];
+        for (int a = 1; a < 3; a++) {
+            double extent = centroids[a * 2 + 1] - centroids[a * 2];
+            if (extent > widest) {
+                widest = extent;
+                axis = a;
+            }
+        }
+        int splitAxis = axis;
+        Integer[] order = new Integer[end - start];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = start + i;
+        }
+        Arrays.sort(order, (a, b) -> Double.compare(centroid(boxes[a], splitAxis), centroid(boxes[b], splitAxis)));
+        Primitive[] sortedPrimitives = new Primitive[order.length];
+        AABB[] sortedBoxes = new AABB[order.length];
+        for (int i = 0; i < order.length; i++) {
+            sortedPrimitives[i] = primitives[order[i]];
+            sortedBoxes[i] = boxes[order[i]];
+        }
+        System.arraycopy(sortedPrimitives, 0, primitives, start, order.length);
+        System.arraycopy(sortedBoxes, 0, boxes, start, order.length);
+
+        int mid = (start + end) >>> 1;
+        buildNode(primitives, boxes, start, mid, bounds, children, counts);
+        children.set(node, buildNode(primitives, boxes, mid, end, bounds, children, counts));
+        return node;
+    }
+
+    private static double centroid(AABB box, int axis) {
+        switch (axis) {
+            case 0: return (box.xmin + box.xmax) / 2;
+            case 1: return (box.ymin + box.ymax) / 2;
+            default: return (box.zmin + box.zmax) / 2;
+        }
+    }
+
+    private static void include(double[] box, double xmin, double xmax, double ymin, double ymax, double zmin, double zmax) {
+        box[0] = Math.min(box[0], xmin);
+        box[1] = Math.max(box[1], xmax);
+        box[2] = Math.min(box[2], ymin);
+        box[3] = Math.max(box[3], ymax);
+        box[4] = Math.min(box[4], zmin);
+        box[5] = Math.max(box[5], zmax);
+    }
+
+    public int primitiveCount() {
+        return primitives.length;
+    }
+
+    /**
+     * Find the closest entity hit of a ray that is closer than its current hit.
+     * Closest hit rays take the color and normal of the entity, occlusion rays only their distance.
+     */
+    public boolean intersect(LargeDiskRenderer.CacheRay ray) {
+        double ox = ray.origin.x, oy = ray.origin.y, oz = ray.origin.z;
+        double invDx = 1 / (double) ray.direction.x;
+        double invDy = 1 / (double) ray.direction.y;
+        double invDz = 1 / (double) ray.direction.z;
+
+        Ray test = new Ray();
+        test.o.set(ox, oy, oz);
+        test.d.set(ray.direction.x, ray.direction.y, ray.direction.z);
+        test.t = ray.distance;
+        boolean hit = false;
+
+        int[] stack = new int[64];
+        int top = 0;
+        stack[top++] = 0;
+        while (top > 0) {
+            int node = stack[--top];
+            if (!hitsBox(node, ox, oy, oz, invDx, invDy, invDz, test.t)) {
+                continue;
+            }
+
+            if (counts[node] > 0) {
+                int first = -children[node] - 1;
+                for (int i = first; i < first + counts[node]; i++) {
+                    if (primitives[i].intersect(test)) {
+                        hit = true;
+                        if (ray.occlusion) {
+                            ray.distance = (float) test.t;
+                            return true;
+                        }
+                    }
+                }
+            } else {
+                stack[top++] = children[node];
+                stack[top++] = node + 1;
+            }
+        }
+
+        if (hit) {
+            ray.normal.x = (float) test.n.x;
+            ray.normal.y = (float) test.n.y;
+            ray.normal.z = (float) test.n.z;
+            ray.color.x = (float) test.color.x;
+            ray.color.y = (float) test.color.y;
+            ray.color.z = (float) test.color.z;
+            ray.emittance.x = ray.emittance.y = ray.emittance.z = 0;
+            ray.distance = (float) test.t;
+        }
+        return hit;
+    }
+
+    private boolean hitsBox(int node, double ox, double oy, double oz, double invDx, double invDy, double invDz,
+                            double maxDistance) {
+        int b = node * 6;
+        double t0 = (bounds[b] - ox) * invDx;
+        double t1 = (bounds[b + 1] - ox) * invDx;
+        double tNear = Math.min(t0, t1);
+        double tFar = Math.max(t0, t1);
+
+        t0 = (bounds[b + 2] - oy) * invDy;
+        t1 = (bounds[b + 3] - oy) * invDy;
+        tNear = Math.max(tNear, Math.min(t0, t1));
+        tFar = Math.min(tFar, Math.max(t0, t1));
+
+        t0 = (bounds[b + 4] - oz) * invDz;
+        t1 = (bounds[b + 5] - oz) * invDz;
+        tNear = Math.max(tNear, Math.min(t0, t1));
+        tFar = Math.min(tFar, Math.max(t0, t1));
+
+        return tNear <= tFar && tFar >= 0 && tNear < maxDistance;
+    }
+}
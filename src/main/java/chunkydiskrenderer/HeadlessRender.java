@@ -0,0 +1,172 @@
+package chunkydiskrenderer;
+
+import se.llbit.chunky.main.Chunky;
+import se.llbit.chunky.main.ChunkyOptions;
+import se.llbit.chunky.renderer.RenderContext;
+import se.llbit.chunky.renderer.scene.Scene;
+import se.llbit.log.Log;
+import se.llbit.util.TaskTracker;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.Locale;
+
+/**
+ * Render a scene through the disk pipeline without the UI and print a throughput report.
+ *
+ * Usage: -render &lt;scene&gt; [-scene-dir &lt;dir&gt;] [-spp &lt;target&gt;] [-f &lt;output.png&gt;]
+ * [-animation &lt;camera path&gt; -frames &lt;count&gt; [-batch &lt;frames per sweep&gt;]]
+ *
+ * With -animation the output name is a format pattern for the frame number, such as frame-%04d.png.
+ */
+public class HeadlessRender {
+    private String sceneName = null;
+    private File sceneDir = null;
+    private int targetSpp = -1;
+    private String output = null;
+    private File cameraPath = null;
+    private int frames = 0;
+    private int framesPerBatch = 8;
+
+    public static boolean isHeadless(String[] args) {
+        for (String arg : args) {
+            if (arg.equals("-render")) return true;
+        }
+        return false;
+    }
+
+    public static void main(String[] args) {
+        HeadlessRender render = new HeadlessRender();
+        try {
+            render.parseArgs(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println("Usage: -render <scene> [-scene-dir <dir>] [-spp <target>] [-f <output.png>]"
+                    + " [-animation <camera path> -frames <count> [-batch <frames per sweep>]]");
+            System.exit(1);
+        }
+
+        try {
+            render.run();
+        } catch (IOException | InterruptedException e) {
+            Log.error("Headless render failed", e);
+            System.exit(1);
+        }
+        System.exit(0);
+    }
+
+    private void parseArgs(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (i + 1 >= args.length) {
+                throw new IllegalArgumentException("Missing value for " + arg);
+            }
+            switch (arg) {
+                case "-render":
+                    sceneName = args[++i];
+                    break;
+                case "-scene-dir":
+                    sceneDir = new File(args[++i]);
+                    break;
+                case "-spp":
+                    targetSpp = Integer.parseInt(args[++i]);
+                    break;
+                case "-f":
+                    output = args[++i];
+                    break;
+                case "-animation":
+                    cameraPath = new File(args[++i]);
+                    break;
+                case "-frames":
+                    frames = Integer.parseInt(args[++i]);
+                    break;
+                case "-batch":
+                    framesPerBatch = Integer.parseInt(args[++i]);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + arg);
+            }
+        }
+
+        if (sceneName == null) {
+            throw new IllegalArgumentException("No scene given");
+        }
+        if (cameraPath != null && (frames <= 0 || framesPerBatch <= 0)) {
+            throw new IllegalArgumentException("Animations need a positive -frames and -batch");
+        }
+        if (output == null) {
+            output = cameraPath == null ? sceneName + ".png" : sceneName + "-%04d.png";
+        }
+    }
+
+    private void run() throws IOException, InterruptedException {
+        Chunky.loadDefaultTextures();
+        ChunkyOptions options = ChunkyOptions.getDefaults();
+        options.sceneName = sceneName;
+        if (sceneDir != null) {
+            options.sceneDir = sceneDir;
+        }
+        Chunky chunky = new Chunky(options);
+        new ChunkyDiskRenderer().attach(chunky);
+        RenderContext context = new RenderContext(chunky);
+
+        Scene scene = chunky.getSceneFactory().newScene();
+        scene.loadScene(context, sceneName, TaskTracker.NONE);
+        if (targetSpp > 0) {
+            scene.setTargetSpp(targetSpp);
+        }
+        if (!(scene.getWorldOctree().getImplementation() instanceof LargeDiskOctree)) {
+            throw new IOException("Scene " + sceneName + " does not use the LargeDiskOctree implementation");
+        }
+
+        DiskRenderMetrics metrics = DiskRenderMetrics.get();
+        metrics.reset();
+        long start = System.nanoTime();
+        DiskRenderManager renderer = new DiskRenderManager(context, true);
+        if (cameraPath != null) {
+            renderer.renderAnimation(scene, CameraPath.load(cameraPath), frames, framesPerBatch,
+                    (frame, width, height, argb) -> writeImage(new File(String.format(Locale.ROOT, output, frame)),
+                            width, height, argb));
+        } else {
+            renderer.renderHeadless(scene);
+            renderer.withBufferedImage(bitmap -> writeImage(new File(output), bitmap.width, bitmap.height, bitmap.data));
+        }
+        long wallTime = System.nanoTime() - start;
+
+        int frameCount = cameraPath == null ? 1 : frames;
+        double seconds = wallTime / 1e9;
+        System.out.println(String.format(Locale.ROOT,
+                "{\"scene\":\"%s\",\"spp\":%d,\"frames\":%d,\"wall_time_ms\":%d,\"rays\":%d,\"rays_per_second\":%.1f,"
+                        + "\"sub_octrees_loaded\":%d,\"sub_octrees_loaded_per_frame\":%.1f,\"bytes_read\":%d,"
+                        + "\"bytes_decompressed\":%d,\"peak_heap_bytes\":%d}",
+                sceneName.replace("\"", "\\\""), scene.getTargetSpp(), frameCount, wallTime / 1000000,
+                renderer.getRaysTraced(), renderer.getRaysTraced() / seconds, metrics.getSubOctreesLoaded(),
+                metrics.getSubOctreesLoaded() / (double) frameCount, metrics.getBytesRead(),
+                metrics.getBytesDecompressed(), peakHeap()));
+    }
+
+    private static void writeImage(File file, int width, int height, int[] argb) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        image.setRGB(0, 0, width, height, argb, 0, width);
+        try {
+            ImageIO.write(image, "png", file);
+        } catch (IOException e) {
+            Log.error("Failed to write " + file, e);
+        }
+    }
+
+    private static long peakHeap() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        return peak;
+    }
+}
@@ -1,37 +1,81 @@
 package chunkydiskrenderer;
 
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.ints.IntArrays;
 import it.unimi.dsi.fastutil.ints.IntIntMutablePair;
-import it.unimi.dsi.fastutil.io.FastBufferedInputStream;
 import it.unimi.dsi.fastutil.io.FastBufferedOutputStream;
 import org.apache.commons.math3.util.FastMath;
 import se.llbit.chunky.chunk.BlockPalette;
+import se.llbit.chunky.renderer.scene.Scene;
 import se.llbit.chunky.world.Material;
 import se.llbit.log.Log;
 import se.llbit.math.Octree;
+import se.llbit.math.Ray;
 import se.llbit.math.Vector3;
 
 import java.io.*;
 import java.util.ArrayList;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
+import java.util.Arrays;
+import java.util.List;
 
 /**
  * This is an octree that wraps many smaller octrees committed to disk.
+ * New sub-octrees cover 1024^3 blocks. Sub-octrees with more nodes than the target are split into their octants
+ * when they are written, and sparse siblings are merged on cleanup, so every file holds a similar number of nodes.
  */
 public class LargeDiskOctree implements Octree.OctreeImplementation {
+    public static final String TARGET_NODES_PROPERTY = "chunkydiskrenderer.targetNodes";
+    // Sub-octrees of up to this many nodes fit the packed 16 bit encoding of MiniPackedOctree
+    private static final long DEFAULT_TARGET_NODES = 1 << 18;
+
+    // Depth of new sub-octrees
     private final int INTERN_OCTREE_DEPTH = 10;
+    // Dense sub-octrees are not split below this depth
+    private static final int MIN_CELL_DEPTH = 5;
+    // Sparse sub-octrees are not merged above this depth
+    private static final int MAX_CELL_DEPTH = 12;
+    // Directory entries hold a top level node index and its level in the low bits
+    private static final int LEVEL_BITS = 5;
+    private static final int LEVEL_MASK = (1 << LEVEL_BITS) - 1;
     private static final int DEFAULT_INITIAL_SIZE = 64;
     private static final double ARRAY_RESIZE_MULTIPLIER = 1.5;
 
     protected ArrayList<File> octrees;
+    private final SubOctreeStorage storage = SubOctreeStorage.fromSystemProperties();
+    private final SubOctreeWriter writer = new SubOctreeWriter();
+    // Origin and depth of each sub-octree, 4 ints per octree index
+    protected IntArrayList cellBounds;
+    // Node count of each sub-octree, as of the last write
+    protected LongArrayList cellNodes;
+    private final long targetNodes = Long.getLong(TARGET_NODES_PROPERTY, DEFAULT_TARGET_NODES);
+    // Coarse in-memory copies of the sub-octrees for instant previews
+    protected ArrayList<MiniPackedOctree> proxies;
+    private SubOctreeCache residentCache = null;
+    private RemoteWorkers remoteWorkers = null;
+    private boolean remoteWorkersFailed = false;
     private MiniPackedOctree cachedTree = null;
     private int cachedTreeIndex = 0;
     private boolean cachedTreeMutated = false;
     private int[] treeData;
+    // Top level node of each non-empty 1024^3 region keyed by the Morton code of the region: the node at the
+    // sub-octree level, or the leaf above it for merged sub-octrees. Regions without an entry are empty.
+    private final Long2IntOpenHashMap directory = new Long2IntOpenHashMap();
     private int totalDepth;
     private int depth;
     private int size;
 
+    /**
+     * Visits the top level cells along a ray.
+     */
+    public interface CellVisitor {
+        /**
+         * Visit the sub-octree at index, entered by the ray at distance tEnter. Returns false to stop the walk.
+         */
+        boolean visit(int index, double tEnter);
+    }
+
     private static final class NodeId implements Octree.NodeId {
         long nodeIndex;
 
@@ -44,9 +88,180 @@ public class LargeDiskOctree implements Octree.OctreeImplementation {
         this.totalDepth = FastMath.max(INTERN_OCTREE_DEPTH, depth);
         this.depth = this.totalDepth - INTERN_OCTREE_DEPTH;
         treeData = new int[DEFAULT_INITIAL_SIZE];
+        size = 1;
 
         octrees = new ArrayList<>(DEFAULT_INITIAL_SIZE);
         octrees.add(null);  // Index 0 is not used
+        proxies = new ArrayList<>(DEFAULT_INITIAL_SIZE);
+        proxies.add(null);
+        cellBounds = new IntArrayList(DEFAULT_INITIAL_SIZE * 4);
+        addCellBounds(0, 0, 0, 0);
+        cellNodes = new LongArrayList(DEFAULT_INITIAL_SIZE);
+        cellNodes.add(0);
+        directory.defaultReturnValue(-1);
+    }
+
+    private void addCellBounds(int x, int y, int z, int cellDepth) {
+        cellBounds.add(x);
+        cellBounds.add(y);
+        cellBounds.add(z);
+        cellBounds.add(cellDepth);
+    }
+
+    /**
+     * Create the file for a new sub-octree and return its index.
+     */
+    private int addCell(int x, int y, int z, int cellDepth) throws IOException {
+        int index = octrees.size();
+        octrees.add(storage.create(x, y, z));
+        proxies.add(null);
+        addCellBounds(x, y, z, cellDepth);
+        cellNodes.add(0);
+        return index;
+    }
+
+    /**
+     * Delete the file of a sub-octree that was split or merged. Its index is left as a hole.
+     */
+    private void removeCell(int index) throws IOException {
+        awaitWrite(index);
+        File octreeF = octrees.get(index);
+        if (!octreeF.delete()) {
+            Log.warn("Could not delete " + octreeF);
+        }
+        octrees.set(index, null);
+        proxies.set(index, null);
+        cellNodes.set(index, 0);
+        if (residentCache != null) {
+            residentCache.invalidate(index);
+        }
+    }
+
+    private void awaitWrite(int index) throws IOException {
+        try {
+            writer.await(index);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for sub-octree " + index);
+        }
+    }
+
+    /**
+     * Wait for all sub-octree writes and install the proxies of the written sub-octrees.
+     */
+    private void flushWrites() throws IOException {
+        try {
+            writer.flush();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for sub-octree writes");
+        }
+
+        SubOctreeWriter.Pending write;
+        while ((write = writer.pollCompleted()) != null) {
+            // Skip sub-octrees that have been split or merged since
+            if (octrees.get(write.index) != null) {
+                proxies.set(write.index, write.proxy);
+            }
+        }
+    }
+
+    public int cellDepth(int index) {
+        return cellBounds.getInt(index * 4 + 3);
+    }
+
+    public int cellX(int index) {
+        return cellBounds.getInt(index * 4);
+    }
+
+    public int cellY(int index) {
+        return cellBounds.getInt(index * 4 + 1);
+    }
+
+    public int cellZ(int index) {
+        return cellBounds.getInt(index * 4 + 2);
+    }
+
+    public int cellSize(int index) {
+        return 1 << cellBounds.getInt(index * 4 + 3);
+    }
+
+    /**
+     * Number of sub-octree indices, including the unused index 0 and the holes left by split and merged sub-octrees.
+     */
+    public int cellCount() {
+        return octrees.size();
+    }
+
+    /**
+     * Number of storage roots the sub-octrees are striped across.
+     */
+    public int storageRoots() {
+        return storage.rootCount();
+    }
+
+    /**
+     * Indices of all sub-octrees.
+     */
+    public int[] cellIndices() {
+        IntArrayList indices = new IntArrayList(octrees.size());
+        for (int i = 1; i < octrees.size(); i++) {
+            if (octrees.get(i) != null) indices.add(i);
+        }
+        return indices.toIntArray();
+    }
+
+    /**
+     * Hash of the sub-octree indices and bounds. Indices saved by an earlier run, such as the rays of a
+     * render checkpoint, only refer to the same sub-octrees if the fingerprints match.
+     */
+    public long cellFingerprint() {
+        long h = totalDepth;
+        for (int index = 1; index < octrees.size(); index++) {
+            if (octrees.get(index) == null) continue;
+            h = h * 0x9E3779B97F4A7C15L + index;
+            for (int i = 0; i < 4; i++) {
+                h = h * 31 + cellBounds.getInt(index * 4 + i);
+            }
+        }
+        return h;
+    }
+
+    /**
+     * The resident set of sub-octrees used by the renderer and batch queries. Sub-octrees are read from disk,
+     * so modifications are only visible after they have been written.
+     */
+    protected synchronized SubOctreeCache residentCache() {
+        if (residentCache == null) {
+            residentCache = new SubOctreeCache(octrees);
+        }
+        return residentCache;
+    }
+
+    /**
+     * The remote workers tracing this octree, or null to trace locally. Only valid after {@link #cleanup()}.
+     */
+    protected synchronized RemoteWorkers remoteWorkers(BlockPalette palette) {
+        if (remoteWorkers == null && !remoteWorkersFailed) {
+            try {
+                remoteWorkers = RemoteWorkers.fromSystemProperty(this, palette);
+            } catch (IOException e) {
+                Log.error("Could not connect to the disk render workers", e);
+            }
+            remoteWorkersFailed = remoteWorkers == null;
+        }
+        return remoteWorkers;
+    }
+
+    /**
+     * Disconnect from the remote workers and trace locally from now on.
+     */
+    protected synchronized void closeRemoteWorkers() {
+        if (remoteWorkers != null) {
+            remoteWorkers.close();
+            remoteWorkers = null;
+        }
+        remoteWorkersFailed = true;
     }
 
     /**
@@ -57,12 +272,16 @@ public class LargeDiskOctree implements Octree.OctreeImplementation {
         System.arraycopy(treeData, 0, newTree, 0, size);
         treeData = newTree;
 
-        if (cachedTreeMutated) {
-            try (DataOutputStream out = new DataOutputStream(new GZIPOutputStream(new FileOutputStream(octrees.get(cachedTreeIndex))))) {
-                cachedTree.store(out);
-            } catch (IOException e) {
-                Log.error(e);
-            }
+        try {
+            storeCachedTree();
+            flushWrites();
+            mergeSparseCells(0, totalDepth, 0, 0, 0);
+            flushWrites();
+        } catch (IOException e) {
+            Log.error(e);
+        } finally {
+            // Merging replaced the nodes of merged regions, even if it stopped early
+            rebuildDirectory();
         }
 
         cachedTree = null;
@@ -79,7 +298,7 @@ public class LargeDiskOctree implements Octree.OctreeImplementation {
             return index;
         }
 
-        int[] newArray = new int[(int) FastMath.ceil(treeData.length * ARRAY_RESIZE_MULTIPLIER)];
+        int[] newArray = new int[FastMath.max((int) FastMath.ceil(treeData.length * ARRAY_RESIZE_MULTIPLIER), size + 8)];
         System.arraycopy(treeData, 0, newArray, 0, size);
         treeData = newArray;
 
@@ -98,20 +317,143 @@ public class LargeDiskOctree implements Octree.OctreeImplementation {
         treeData[nodeIndex] = firstChildIndex;
     }
 
+    /**
+     * Queue the cached octree to be written if it has been modified, and release it.
+     */
+    private void storeCachedTree() throws IOException {
+        if (!cachedTreeMutated) return;
+
+        int index = cachedTreeIndex;
+        MiniPackedOctree tree = cachedTree;
+        // The tree now belongs to the writer, it is read back from the pending copy if needed
+        cachedTree = null;
+        cachedTreeIndex = 0;
+        cachedTreeMutated = false;
+        storeTree(index, tree, tree.nodeCount());
+    }
+
+    /**
+     * Queue the sub-octree at index to be written, splitting it into its octants first if it has too many nodes.
+     * The tree must not be modified afterwards. Returns true if it was split.
+     */
+    private boolean storeTree(int index, MiniPackedOctree tree, long nodes) throws IOException {
+        // The sub-octree being built must also fit the build share of the memory budget
+        if (nodes > FastMath.min(targetNodes, MemoryBudget.get().buildNodes()) && tree.depth > MIN_CELL_DEPTH) {
+            splitCell(index, tree);
+            return true;
+        }
+
+        tree.compact();
+        try {
+            writer.write(index, octrees.get(index), tree);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted queueing sub-octree " + index);
+        }
+        cellNodes.set(index, nodes);
+
+        if (residentCache != null) {
+            residentCache.invalidate(index);
+        }
+        return false;
+    }
+
+    /**
+     * Replace the sub-octree at index by one sub-octree per non-empty octant.
+     */
+    private void splitCell(int index, MiniPackedOctree tree) throws IOException {
+        int nodeIndex = findLeaf(cellX(index), cellY(index), cellZ(index)) >>> LEVEL_BITS;
+        subdivideNode(nodeIndex);
+        int firstChildIndex = treeData[nodeIndex];
+        removeCell(index);
+
+        MiniPackedOctree[] octants = tree.split();
+        for (int i = 0; i < 8; i++) {
+            MiniPackedOctree octant = octants[i];
+            if (octant.treeData[0] == 0) {
+                // All air
+                treeData[firstChildIndex + i] = 0;
+                continue;
+            }
+            int octantIndex = addCell((int) octant.center.x, (int) octant.center.y, (int) octant.center.z, octant.depth);
+            treeData[firstChildIndex + i] = -octantIndex;
+            storeTree(octantIndex, octant, octant.nodeCount());
+        }
+    }
+
+    /**
+     * Merge sibling sub-octrees that are small enough together into their parent, bottom up.
+     * Returns the node count of the sub-octree at nodeIndex, or -1 if it is a branch that can not be merged.
+     */
+    private long mergeSparseCells(int nodeIndex, int level, int x, int y, int z) throws IOException {
+        if (treeData[nodeIndex] == 0) return 0;
+        if (treeData[nodeIndex] < 0) return cellNodes.getLong(-treeData[nodeIndex]);
+
+        int half = 1 << (level - 1);
+        int firstChildIndex = treeData[nodeIndex];
+        long nodes = 1;
+        boolean empty = true;
+        for (int i = 0; i < 8; i++) {
+            long childNodes = mergeSparseCells(firstChildIndex + i, level - 1,
+                    x + ((i >> 2) & 1) * half, y + ((i >> 1) & 1) * half, z + (i & 1) * half);
+            if (childNodes < 0) {
+                nodes = -1;
+            } else if (nodes >= 0) {
+                nodes += childNodes;
+            }
+            empty &= treeData[firstChildIndex + i] == 0;
+        }
+
+        if (empty) {
+            treeData[nodeIndex] = 0;
+            return 0;
+        }
+        // Stay well below the target, so a merged sub-octree is not split again by the next few blocks
+        if (nodes < 0 || nodes > targetNodes / 2 || level > MAX_CELL_DEPTH) {
+            return -1;
+        }
+
+        MiniPackedOctree[] octants = new MiniPackedOctree[8];
+        for (int i = 0; i < 8; i++) {
+            int child = -treeData[firstChildIndex + i];
+            if (child != 0) {
+                octants[i] = loadCell(child);
+            }
+        }
+        MiniPackedOctree merged = MiniPackedOctree.join(octants, level, new Vector3(x, y, z));
+        int index = addCell(x, y, z, level);
+        // Attach the merged cell before storing it, a split resolves it through the directory
+        treeData[nodeIndex] = -index;
+        if (level >= INTERN_OCTREE_DEPTH) {
+            addDirectoryEntries(nodeIndex, level, x, y, z);
+        }
+        boolean split = storeTree(index, merged, merged.nodeCount());
+        for (int i = 0; i < 8; i++) {
+            int child = -treeData[firstChildIndex + i];
+            if (child != 0) {
+                removeCell(child);
+            }
+        }
+        return split ? -1 : cellNodes.getLong(index);
+    }
+
     /**
      * Save the current octree and swap to the octree at (x, y, z).
      */
     private void switchOctrees(int x, int y, int z) throws IOException {
-        // Calculate which node
-        int nodeIndex = 0;
-        int level = totalDepth;
-        while (treeData[nodeIndex] > 0) {
-            level--;
-            int lx = 1 & (x >>> level);
-            int ly = 1 & (y >>> level);
-            int lz = 1 & (z >>> level);
-            nodeIndex = treeData[nodeIndex] + ((lx << 2) | (ly << 1) | lz);
+        switchOctrees(findLeaf(x, y, z), x, y, z);
+    }
+
+    /**
+     * Save the current octree and swap to the octree at (x, y, z), given its leaf as returned by findLeaf.
+     */
+    private void switchOctrees(int leaf, int x, int y, int z) throws IOException {
+        // Regions missing from the directory are walked from the root to be created
+        if (leaf < 0) {
+            leaf = walkLeaf(0, totalDepth, x, y, z);
         }
+        int nodeIndex = leaf >>> LEVEL_BITS;
+        int level = leaf & LEVEL_MASK;
         int data = -treeData[nodeIndex];
 
         // Same octree, skip
@@ -119,34 +461,34 @@ public class LargeDiskOctree implements Octree.OctreeImplementation {
             return;
         }
 
-        // Different octree, save the current octree if necessary
-        if (cachedTreeMutated) {
-            try (DataOutputStream out = new DataOutputStream(new GZIPOutputStream(new FileOutputStream(octrees.get(cachedTreeIndex))))) {
-                cachedTree.store(out);
-            }
-        }
-
-        cachedTreeMutated = false;
+        // Different octree, save the current octree if necessary.
+        // Splitting it only subdivides its own node, so nodeIndex stays valid.
+        storeCachedTree();
 
         // Create new octree
         if (data == 0) {
-            // Subdivide and traverse one more level
-            subdivideNode(nodeIndex);
-            level--;
-            int lx = 1 & (x >>> level);
-            int ly = 1 & (y >>> level);
-            int lz = 1 & (z >>> level);
-            nodeIndex = treeData[nodeIndex] + ((lx << 2) | (ly << 1) | lz);
+            // Subdivide down to the sub-octree level. Empty octants of split sub-octrees are already below it.
+            while (level > INTERN_OCTREE_DEPTH) {
+                subdivideNode(nodeIndex);
+                level--;
+                int lx = 1 & (x >>> level);
+                int ly = 1 & (y >>> level);
+                int lz = 1 & (z >>> level);
+                nodeIndex = treeData[nodeIndex] + ((lx << 2) | (ly << 1) | lz);
+            }
+            if (level == INTERN_OCTREE_DEPTH) {
+                directory.put(regionKey(x, y, z), entry(nodeIndex, level));
+            }
+            int cellX = (x >>> level) << level;
+            int cellY = (y >>> level) << level;
+            int cellZ = (z >>> level) << level;
 
             // Create new file
-            File octreeF = File.createTempFile("largediskoctree", ".bin");
-            octreeF.deleteOnExit();
-            int index = octrees.size();
+            int index = addCell(cellX, cellY, cellZ, level);
             treeData[nodeIndex] = -index;
-            octrees.add(octreeF);
 
             // Create new octree
-            cachedTree = new MiniPackedOctree(INTERN_OCTREE_DEPTH, new Vector3(0, 0, 0));
+            cachedTree = new MiniPackedOctree(level, new Vector3(cellX, cellY, cellZ));
             cachedTreeIndex = index;
             cachedTreeMutated = true;
 
@@ -155,17 +497,47 @@ public class LargeDiskOctree implements Octree.OctreeImplementation {
 
         // Load existing octree
         int index = -treeData[nodeIndex];
-        File octreeF = octrees.get(index);
-        cachedTree = MiniPackedOctree.load(new DataInputStream(new FastBufferedInputStream(new GZIPInputStream(new FileInputStream(octreeF)))));
+        cachedTree = loadCell(index);
         cachedTreeIndex = index;
     }
 
     /**
-     * Returns if the location (x, y, z) is empty.
+     * Load a modifiable copy of the sub-octree at index, from its pending copy if it is still being written.
      */
-    private boolean emptyAt(int x, int y, int z) {
-        int nodeIndex = 0;
-        int level = totalDepth;
+    private MiniPackedOctree loadCell(int index) throws IOException {
+        MiniPackedOctree pending = writer.pending(index);
+        return pending != null ? pending.copy() : SubOctreeCache.load(octrees.get(index));
+    }
+
+    private static int entry(int nodeIndex, int level) {
+        return (nodeIndex << LEVEL_BITS) | level;
+    }
+
+    /**
+     * Interleave the low 21 bits of x, y and z.
+     */
+    static long morton(int x, int y, int z) {
+        return spread(x) << 2 | spread(y) << 1 | spread(z);
+    }
+
+    private static long spread(int v) {
+        long x = v & 0x1fffffL;
+        x = (x | x << 32) & 0x1f00000000ffffL;
+        x = (x | x << 16) & 0x1f0000ff0000ffL;
+        x = (x | x << 8) & 0x100f00f00f00f00fL;
+        x = (x | x << 4) & 0x10c30c30c30c30c3L;
+        x = (x | x << 2) & 0x1249249249249249L;
+        return x;
+    }
+
+    private long regionKey(int x, int y, int z) {
+        return morton(x >>> INTERN_OCTREE_DEPTH, y >>> INTERN_OCTREE_DEPTH, z >>> INTERN_OCTREE_DEPTH);
+    }
+
+    /**
+     * Walk down from a top level node to the leaf containing (x, y, z). Returns the leaf as a directory entry.
+     */
+    private int walkLeaf(int nodeIndex, int level, int x, int y, int z) {
         while (treeData[nodeIndex] > 0) {
             level--;
             int lx = 1 & (x >>> level);
@@ -173,8 +545,63 @@ public class LargeDiskOctree implements Octree.OctreeImplementation {
             int lz = 1 & (z >>> level);
             nodeIndex = treeData[nodeIndex] + ((lx << 2) | (ly << 1) | lz);
         }
+        return entry(nodeIndex, level);
+    }
+
+    /**
+     * Find the top level leaf containing (x, y, z) through the directory.
+     * Returns the leaf as a directory entry, or -1 if its region is empty.
+     */
+    private int findLeaf(int x, int y, int z) {
+        int entry = directory.get(regionKey(x, y, z));
+        if (entry < 0) return -1;
+        return walkLeaf(entry >>> LEVEL_BITS, entry & LEVEL_MASK, x, y, z);
+    }
+
+    /**
+     * Fill the directory from the top level tree.
+     */
+    private void rebuildDirectory() {
+        directory.clear();
+        addDirectoryEntries(0, totalDepth, 0, 0, 0);
+    }
+
+    private void addDirectoryEntries(int nodeIndex, int level, int x, int y, int z) {
+        if (treeData[nodeIndex] == 0) return;
+
+        if (level == INTERN_OCTREE_DEPTH || treeData[nodeIndex] < 0) {
+            // A node above the sub-octree level covers several regions
+            int regions = 1 << FastMath.max(level - INTERN_OCTREE_DEPTH, 0);
+            for (int i = 0; i < regions; i++) {
+                for (int j = 0; j < regions; j++) {
+                    for (int k = 0; k < regions; k++) {
+                        directory.put(regionKey(x + (i << INTERN_OCTREE_DEPTH), y + (j << INTERN_OCTREE_DEPTH),
+                                z + (k << INTERN_OCTREE_DEPTH)), entry(nodeIndex, level));
+                    }
+                }
+            }
+            return;
+        }
 
-        return treeData[nodeIndex] == 0;
+        int half = 1 << (level - 1);
+        for (int i = 0; i < 8; i++) {
+            addDirectoryEntries(treeData[nodeIndex] + i, level - 1,
+                    x + ((i >> 2) & 1) * half, y + ((i >> 1) & 1) * half, z + (i & 1) * half);
+        }
+    }
+
+    /**
+     * Returns if a leaf as returned by findLeaf is empty.
+     */
+    private boolean isEmptyLeaf(int leaf) {
+        return leaf < 0 || treeData[leaf >>> LEVEL_BITS] == 0;
+    }
+
+    /**
+     * The level of the top level leaf containing (x, y, z), walking from the root in empty regions.
+     */
+    private int leafLevel(int leaf, int x, int y, int z) {
+        return (leaf < 0 ? walkLeaf(0, totalDepth, x, y, z) : leaf) & LEVEL_MASK;
     }
 
     @Override
@@ -195,12 +622,72 @@ public class LargeDiskOctree implements Octree.OctreeImplementation {
         this.set(data.type, x, y, z);
     }
 
+    /**
+     * Set a cube of blocks, such as a chunk section, in one step. Each cube is built bottom-up in its
+     * sub-octree instead of descending the sub-octree once per block. Cubes of only type 0 in empty
+     * regions are skipped, cubes spanning several sub-octrees are split into octants.
+     */
+    @Override
+    public void setCube(int cubeDepth, int[] types, int x, int y, int z) {
+        if (cubeDepth > INTERN_OCTREE_DEPTH) {
+            setOctants(cubeDepth, types, x, y, z);
+            return;
+        }
+
+        int leaf = findLeaf(x, y, z);
+        if ((leaf < 0 || (treeData[leaf >>> LEVEL_BITS] == 0 && (leaf & LEVEL_MASK) >= cubeDepth)) && isEmpty(types)) {
+            return;
+        }
+
+        try {
+            switchOctrees(leaf, x, y, z);
+        } catch (IOException e) {
+            Log.error(e);
+            return;
+        }
+
+        if (cachedTree.depth < cubeDepth) {
+            setOctants(cubeDepth, types, x, y, z);
+            return;
+        }
+        cachedTreeMutated = true;
+        cachedTree.setCube(cubeDepth, types, x, y, z);
+    }
+
+    private static boolean isEmpty(int[] types) {
+        for (int type : types) {
+            if (type != 0) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Set a cube as its eight octants.
+     */
+    private void setOctants(int cubeDepth, int[] types, int x, int y, int z) {
+        int size = 1 << cubeDepth;
+        int half = size >> 1;
+        int[] octant = new int[half * half * half];
+        for (int i = 0; i < 8; i++) {
+            int ox = ((i >> 2) & 1) * half;
+            int oy = ((i >> 1) & 1) * half;
+            int oz = (i & 1) * half;
+            for (int lz = 0; lz < half; lz++) {
+                for (int ly = 0; ly < half; ly++) {
+                    System.arraycopy(types, ((oz + lz) * size + oy + ly) * size + ox, octant, (lz * half + ly) * half, half);
+                }
+            }
+            setCube(cubeDepth - 1, octant, x + ox, y + oy, z + oz);
+        }
+    }
+
     @Override
     public Octree.Node get(int x, int y, int z) {
-        if (emptyAt(x, y, z)) return new Octree.Node(0);
+        int leaf = findLeaf(x, y, z);
+        if (isEmptyLeaf(leaf)) return new Octree.Node(0);
 
         try {
-            switchOctrees(x, y, z);
+            switchOctrees(leaf, x, y, z);
         } catch (IOException e) {
             Log.error(e);
             return null;
@@ -226,11 +713,18 @@ public class LargeDiskOctree implements Octree.OctreeImplementation {
 
     @Override
     public long nodeCount() {
+        try {
+            storeCachedTree();
+            flushWrites();
+        } catch (IOException e) {
+            Log.error(e);
+        }
+
         long sum = 0;
         sum += countNodes(0);
-        sum += octrees.stream().mapToLong(octreeF -> {
+        sum += octrees.stream().skip(1).filter(octreeF -> octreeF != null).mapToLong(octreeF -> {
             try {
-                return MiniPackedOctree.load(new DataInputStream(new FastBufferedInputStream(new GZIPInputStream(new FileInputStream(octreeF))))).nodeCount();
+                return SubOctreeCache.load(octreeF).nodeCount();
             } catch (IOException e) {
                 Log.error(e);
                 return 1;
@@ -275,27 +769,247 @@ public class LargeDiskOctree implements Octree.OctreeImplementation {
         return 0;
     }
 
-    @Override
-    public void getWithLevel(IntIntMutablePair outTypeAndLevel, int x, int y, int z) {
-        int nodeIndex = 0;
-        int level = totalDepth;
-        while (treeData[nodeIndex] > 0) {
-            level--;
-            int lx = 1 & (x >>> level);
-            int ly = 1 & (y >>> level);
-            int lz = 1 & (z >>> level);
-            nodeIndex = treeData[nodeIndex] + ((lx << 2) | (ly << 1) | lz);
+    /**
+     * Find the sub-octrees inside the frustum, sorted front to back by their distance to the camera.
+     */
+    public int[] visibleCells(CameraFrustum frustum) {
+        IntArrayList visible = new IntArrayList();
+        collectVisible(frustum, 0, totalDepth, 0, 0, 0, visible);
+
+        int[] cells = visible.toIntArray();
+        double[] distances = new double[octrees.size()];
+        for (int index : cells) {
+            distances[index] = cellDistance(frustum, index);
         }
+        IntArrays.quickSort(cells, (a, b) -> Double.compare(distances[a], distances[b]));
+        return cells;
+    }
 
-        // Empty
-        if (treeData[nodeIndex] == 0) {
-            outTypeAndLevel.right(level).left(0);
+    /**
+     * Find the sub-octrees inside any of the frustums, sorted front to back by their distance to the closest camera.
+     */
+    public int[] visibleCells(List<CameraFrustum> frustums) {
+        IntArrayList visible = new IntArrayList();
+        double[] distances = new double[octrees.size()];
+        Arrays.fill(distances, Double.NaN);
+        IntArrayList inside = new IntArrayList();
+        for (CameraFrustum frustum : frustums) {
+            inside.clear();
+            collectVisible(frustum, 0, totalDepth, 0, 0, 0, inside);
+            for (int i = 0; i < inside.size(); i++) {
+                int index = inside.getInt(i);
+                double distance = cellDistance(frustum, index);
+                if (Double.isNaN(distances[index])) {
+                    visible.add(index);
+                    distances[index] = distance;
+                } else {
+                    distances[index] = FastMath.min(distances[index], distance);
+                }
+            }
+        }
+
+        int[] cells = visible.toIntArray();
+        IntArrays.quickSort(cells, (a, b) -> Double.compare(distances[a], distances[b]));
+        return cells;
+    }
+
+    /**
+     * Distance from the camera to the closest point of the sub-octree at index.
+     */
+    public double cellDistance(CameraFrustum frustum, int index) {
+        int size = cellSize(index);
+        return frustum.distance(cellX(index), cellY(index), cellZ(index),
+                cellX(index) + size, cellY(index) + size, cellZ(index) + size);
+    }
+
+    private void collectVisible(CameraFrustum frustum, int nodeIndex, int level, int x, int y, int z, IntArrayList out) {
+        int size = 1 << level;
+        if (treeData[nodeIndex] == 0 || !frustum.intersects(x, y, z, x + size, y + size, z + size)) {
             return;
         }
 
-        level = totalDepth - level;
+        if (treeData[nodeIndex] < 0) {
+            out.add(-treeData[nodeIndex]);
+            return;
+        }
+
+        int half = size >> 1;
+        for (int i = 0; i < 8; i++) {
+            collectVisible(frustum, treeData[nodeIndex] + i, level - 1,
+                    x + ((i >> 2) & 1) * half, y + ((i >> 1) & 1) * half, z + (i & 1) * half, out);
+        }
+    }
+
+    /**
+     * Walk the top level cells along a ray in order, up to maxDistance.
+     */
+    public void walkCells(double ox, double oy, double oz, double dx, double dy, double dz, double maxDistance, CellVisitor visitor) {
+        double invDx = 1 / dx;
+        double invDy = 1 / dy;
+        double invDz = 1 / dz;
+        double offsetX = -ox * invDx;
+        double offsetY = -oy * invDy;
+        double offsetZ = -oz * invDz;
+
+        // AABB intersection with the octree boundary
+        double rootSize = 1L << totalDepth;
+        double distance = 0;
+        double tMax = maxDistance;
+
+        double t0 = offsetX;
+        double t1 = rootSize * invDx + offsetX;
+        if (t0 > t1) { double t = t0; t0 = t1; t1 = t; }
+        if (t0 > distance) distance = t0;
+        if (t1 < tMax) tMax = t1;
+
+        t0 = offsetY;
+        t1 = rootSize * invDy + offsetY;
+        if (t0 > t1) { double t = t0; t0 = t1; t1 = t; }
+        if (t0 > distance) distance = t0;
+        if (t1 < tMax) tMax = t1;
+
+        t0 = offsetZ;
+        t1 = rootSize * invDz + offsetZ;
+        if (t0 > t1) { double t = t0; t0 = t1; t1 = t; }
+        if (t0 > distance) distance = t0;
+        if (t1 < tMax) tMax = t1;
+
+        while (distance < tMax) {
+            int x = (int) FastMath.floor(ox + dx * (distance + Ray.OFFSET));
+            int y = (int) FastMath.floor(oy + dy * (distance + Ray.OFFSET));
+            int z = (int) FastMath.floor(oz + dz * (distance + Ray.OFFSET));
+            if (((x | y | z) >>> totalDepth) != 0) {
+                return;
+            }
+
+            // Empty regions are walked from the root to step over the largest empty node
+            int leaf = findLeaf(x, y, z);
+            if (leaf < 0) {
+                leaf = walkLeaf(0, totalDepth, x, y, z);
+            }
+            int nodeIndex = leaf >>> LEVEL_BITS;
+            int level = leaf & LEVEL_MASK;
+
+            if (treeData[nodeIndex] < 0 && !visitor.visit(-treeData[nodeIndex], distance)) {
+                return;
+            }
+
+            // Exit the current top level leaf
+            long lx = x >>> level;
+            long ly = y >>> level;
+            long lz = z >>> level;
+            double tNext = Double.POSITIVE_INFINITY;
+            double t = ((dx > 0 ? lx + 1 : lx) << level) * invDx + offsetX;
+            if (t < tNext) tNext = t;
+            t = ((dy > 0 ? ly + 1 : ly) << level) * invDy + offsetY;
+            if (t < tNext) tNext = t;
+            t = ((dz > 0 ? lz + 1 : lz) << level) * invDz + offsetZ;
+            if (t < tNext) tNext = t;
+
+            distance = FastMath.max(tNext, distance + Ray.EPSILON);
+        }
+    }
+
+    /**
+     * Intersect a ray with the in-memory proxy octrees only.
+     */
+    public boolean intersectProxy(LargeDiskRenderer.CacheRay ray, BlockPalette palette, Scene scene) {
+        boolean[] hit = {false};
+        walkCells(ray.origin.x, ray.origin.y, ray.origin.z, ray.direction.x, ray.direction.y, ray.direction.z,
+                ray.distance, (index, tEnter) -> {
+            // Cells are visited in order, so the first hit is the closest
+            MiniPackedOctree proxy = proxies.get(index);
+            if (proxy != null && proxy.intersect(ray, palette, scene)) {
+                hit[0] = true;
+                return false;
+            }
+            return true;
+        });
+        return hit[0];
+    }
+
+    /**
+     * Write the modified sub-octree and wait for all writes, so batch queries can read every sub-octree from disk.
+     */
+    private synchronized void prepareBatch() {
         try {
-            switchOctrees(x, y, z);
+            storeCachedTree();
+            flushWrites();
+        } catch (IOException e) {
+            Log.error(e);
+        }
+    }
+
+    /**
+     * Look up many points at once. xyz holds count points as x, y, z triples. The block type of each point is
+     * written to types and, if levels is not null, the level as returned by getWithLevel to levels.
+     * Points are grouped by sub-octree and each sub-octree is read once per batch through the resident cache,
+     * so the order of the points does not matter. Unlike get, batches may run on several threads at once,
+     * but not while the octree is being modified.
+     */
+    public void getBatch(int[] xyz, int count, int[] types, int[] levels) {
+        prepareBatch();
+
+        int[] cells = new int[count];
+        int[] cellLevels = new int[count];
+        int[] order = new int[count];
+        for (int i = 0; i < count; i++) {
+            order[i] = i;
+            int leaf = findLeaf(xyz[i * 3], xyz[i * 3 + 1], xyz[i * 3 + 2]);
+            int level = leafLevel(leaf, xyz[i * 3], xyz[i * 3 + 1], xyz[i * 3 + 2]);
+            cells[i] = leaf < 0 ? 0 : -treeData[leaf >>> LEVEL_BITS];
+            cellLevels[i] = level;
+            if (cells[i] == 0) {
+                // Empty
+                types[i] = 0;
+                if (levels != null) levels[i] = level;
+            }
+        }
+        IntArrays.quickSort(order, (a, b) -> Integer.compare(cells[a], cells[b]));
+
+        SubOctreeCache cache = residentCache();
+        IntIntMutablePair typeAndLevel = new IntIntMutablePair(0, 0);
+        int start = 0;
+        while (start < count) {
+            int cell = cells[order[start]];
+            int end = start;
+            while (end < count && cells[order[end]] == cell) end++;
+
+            if (cell != 0) {
+                MiniPackedOctree tree = null;
+                try {
+                    tree = cache.get(cell);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                for (int k = start; k < end; k++) {
+                    int i = order[k];
+                    if (tree == null) {
+                        types[i] = 0;
+                        if (levels != null) levels[i] = cellLevels[i];
+                        continue;
+                    }
+                    tree.getWithLevel(typeAndLevel, xyz[i * 3], xyz[i * 3 + 1], xyz[i * 3 + 2]);
+                    types[i] = typeAndLevel.leftInt();
+                    if (levels != null) levels[i] = typeAndLevel.rightInt() + totalDepth - cellLevels[i];
+                }
+            }
+            start = end;
+        }
+    }
+
+    @Override
+    public void getWithLevel(IntIntMutablePair outTypeAndLevel, int x, int y, int z) {
+        int leaf = findLeaf(x, y, z);
+        if (isEmptyLeaf(leaf)) {
+            // Empty, the level of the empty node, which in an empty region may be above the sub-octree level
+            outTypeAndLevel.right(leafLevel(leaf, x, y, z)).left(0);
+            return;
+        }
+
+        int level = totalDepth - (leaf & LEVEL_MASK);
+        try {
+            switchOctrees(leaf, x, y, z);
         } catch (IOException e) {
             Log.error(e);
             return;
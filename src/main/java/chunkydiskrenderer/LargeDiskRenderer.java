@@ -1,30 +1,43 @@
 package chunkydiskrenderer;
 
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
+import org.apache.commons.math3.util.FastMath;
 import se.llbit.chunky.renderer.scene.Scene;
 import se.llbit.math.Ray;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantLock;
 
 public class LargeDiskRenderer extends Thread {
-    // Let up to 16 million rays be waiting for a trace
-    private static final int MAX_RAYS_BUFFER = 1<<24;
-
     private final ArrayList<CacheRay> waitQueue = new ArrayList<>();
+    // When the oldest waiting ray was added, and whether a producer waits for the waiting rays. Guarded by waitQueue
+    private long queuedSince;
+    private boolean queueComplete;
     private ArrayList<CacheRay> processQueue = new ArrayList<>();
 
     private final ReentrantLock traceLock = new ReentrantLock();
     private final Object traceDoneMonitor = new Object();
+    // Rays added but not yet traced
+    private final AtomicLong pendingRays = new AtomicLong();
 
     public LargeDiskRendererTracer tracer;
+    private LargeDiskOctree octree;
 
     // A minimal class representing a ray to be traced
     public static class CacheRay {
         int depth;
+        // Animation frame this ray belongs to
+        int frame;
         int x;
         int y;
         float distance;
+        // Occlusion rays only report whether anything blocks them before maxDistance
+        boolean occlusion;
+        float maxDistance;
         Float3 normal;
         Float3 origin;
         Float3 direction;
@@ -32,6 +45,9 @@ public class LargeDiskRenderer extends Thread {
         Float3 color;
         Float3 emittance;
 
+        // Translucent surfaces in front of the hit, sorted by entry distance
+        Segment segments;
+
         CacheRay prev;
 
         public static CacheRay create(int depth, int x, int y, Float3 origin, Float3 direction) {
@@ -39,7 +55,8 @@ public class LargeDiskRenderer extends Thread {
             ray.depth = depth;
             ray.x = x;
             ray.y = y;
-            ray.distance = 0;
+            ray.distance = Float.POSITIVE_INFINITY;
+            ray.maxDistance = Float.POSITIVE_INFINITY;
             ray.normal = Float3.create(0, 0, 0);
             ray.origin = Float3.copy(origin);
             ray.direction = Float3.copy(direction);
@@ -49,11 +66,103 @@ public class LargeDiskRenderer extends Thread {
             return ray;
         }
 
+        /**
+         * Create an occlusion ray. Tracing stops at the first blocking hit closer than maxDistance and skips shading.
+         */
+        public static CacheRay createOcclusion(int depth, int x, int y, Float3 origin, Float3 direction, float maxDistance) {
+            CacheRay ray = create(depth, x, y, origin, direction);
+            ray.occlusion = true;
+            ray.maxDistance = maxDistance;
+            ray.distance = maxDistance;
+            return ray;
+        }
+
+        /**
+         * True if this is an occlusion ray that has been blocked.
+         */
+        public boolean isOccluded() {
+            return occlusion && distance < maxDistance;
+        }
+
+        /**
+         * Add a segment for the part of the ray inside one sub-octree, starting at tEnter.
+         */
+        public Segment addSegment(float tEnter) {
+            Segment segment = new Segment();
+            segment.tEnter = tEnter;
+            if (segments == null || segments.tEnter > tEnter) {
+                segment.next = segments;
+                segments = segment;
+            } else {
+                Segment previous = segments;
+                while (previous.next != null && previous.next.tEnter <= tEnter) {
+                    previous = previous.next;
+                }
+                segment.next = previous.next;
+                previous.next = segment;
+            }
+            return segment;
+        }
+
+        /**
+         * The color of the hit seen through the translucent segments in front of it.
+         * Returns the hit color itself if the ray did not pass through anything translucent.
+         */
+        public Float3 resolveColor() {
+            if (segments == null) {
+                return color;
+            }
+
+            float r = 0, g = 0, b = 0;
+            float transmittance = 1;
+            int medium = Segment.NO_MEDIUM;
+            float lastExit = Float.NEGATIVE_INFINITY;
+            for (Segment segment = segments; segment != null && segment.tEnter < distance; segment = segment.next) {
+                // A medium only continues into directly adjacent sub-octrees, anything else is air
+                if (segment.tEnter - lastExit > Segment.ADJACENT) {
+                    medium = Segment.NO_MEDIUM;
+                }
+                if (segment.boundaryAlpha > 0 && medium != segment.entryMedium) {
+                    r += transmittance * segment.boundaryR;
+                    g += transmittance * segment.boundaryG;
+                    b += transmittance * segment.boundaryB;
+                    transmittance *= 1 - segment.boundaryAlpha;
+                }
+                r += transmittance * segment.r;
+                g += transmittance * segment.g;
+                b += transmittance * segment.b;
+                transmittance *= segment.transmittance;
+                medium = segment.exitMedium;
+                lastExit = segment.tExit;
+            }
+
+            if (distance < Float.POSITIVE_INFINITY) {
+                r += transmittance * color.x;
+                g += transmittance * color.y;
+                b += transmittance * color.z;
+            }
+            return Float3.create(r, g, b);
+        }
+
+        /**
+         * Forget the current hit so the ray can be traced again.
+         */
+        public void resetHit() {
+            segments = null;
+            distance = maxDistance;
+            normal.x = normal.y = normal.z = 0;
+            color.x = color.y = color.z = 0;
+            emittance.x = emittance.y = emittance.z = 0;
+        }
+
         public static CacheRay copy(CacheRay other) {
             CacheRay ray = new CacheRay();
             ray.depth = other.depth+1;
+            ray.frame = other.frame;
             ray.x = other.x;
             ray.y = other.y;
+            ray.distance = Float.POSITIVE_INFINITY;
+            ray.maxDistance = Float.POSITIVE_INFINITY;
             ray.normal = Float3.create(0, 0, 0);
             ray.origin = Float3.copy(other.origin);
             ray.direction = Float3.copy(other.direction);
@@ -74,6 +183,47 @@ public class LargeDiskRenderer extends Thread {
         }
     }
 
+    /**
+     * The translucent surfaces a ray passed through inside one sub-octree.
+     * Sub-octrees are swept in any order, so each segment is recorded on its own and they are
+     * composited front to back once the ray is done. Colors are premultiplied by alpha.
+     */
+    public static class Segment {
+        public static final int NO_MEDIUM = -1;
+        // Largest gap between two segments that still counts as adjacent sub-octrees
+        static final float ADJACENT = 1e-3f;
+
+        float tEnter;
+        float tExit = Float.POSITIVE_INFINITY;
+        // Block type the ray is inside of when entering and leaving the sub-octree
+        int entryMedium = NO_MEDIUM;
+        int exitMedium = NO_MEDIUM;
+
+        // Surface at the entry point, only visible if the ray was not already inside that medium
+        float boundaryR, boundaryG, boundaryB, boundaryAlpha;
+
+        // Surfaces after the entry point
+        float r, g, b;
+        float transmittance = 1;
+
+        Segment next;
+
+        public void setBoundary(double r, double g, double b, double alpha, int medium) {
+            boundaryR = (float) (r * alpha);
+            boundaryG = (float) (g * alpha);
+            boundaryB = (float) (b * alpha);
+            boundaryAlpha = (float) alpha;
+            entryMedium = medium;
+        }
+
+        public void addSurface(double r, double g, double b, double alpha) {
+            this.r += (float) (transmittance * r * alpha);
+            this.g += (float) (transmittance * g * alpha);
+            this.b += (float) (transmittance * b * alpha);
+            transmittance *= (float) (1 - alpha);
+        }
+    }
+
     public static class Float3 {
         public float x;
         public float y;
@@ -98,33 +248,223 @@ public class LargeDiskRenderer extends Thread {
 
     public LargeDiskRenderer(Scene scene) {
         if (scene.getWorldOctree().getImplementation() instanceof LargeDiskOctree) {
-            LargeDiskOctree octree = (LargeDiskOctree) scene.getWorldOctree().getImplementation();
+            octree = (LargeDiskOctree) scene.getWorldOctree().getImplementation();
             octree.cleanup();
-            tracer = new LargeDiskRendererTracer(octree.octrees);
+            tracer = new LargeDiskRendererTracer(octree);
             tracer.start();
             tracer.scene = scene;
             tracer.palette = scene.getPalette();
         }
     }
 
+    /**
+     * Restrict tracing to the sub-octrees inside the camera frustum and start loading them front to back.
+     * Sub-octrees entering the predicted frustum are loaded speculatively with the remaining cache space.
+     * Only valid for rays starting at the camera.
+     */
+    public void cullToFrustum(CameraFrustum frustum, CameraFrustum predicted) {
+        if (octree == null) return;
+
+        int[] visible = octree.visibleCells(frustum);
+        double[] bounds = null;
+        if (frustum.hasPointOrigin()) {
+            bounds = new double[visible.length];
+            for (int i = 0; i < visible.length; i++) {
+                bounds[i] = octree.cellDistance(frustum, visible[i]);
+            }
+        }
+        tracer.setTraceOrder(visible, bounds);
+
+        SubOctreeCache cache = tracer.getCache();
+        int prefetched = cache.prefetch(visible, 0);
+        if (predicted != null && prefetched == visible.length) {
+            IntOpenHashSet visibleSet = new IntOpenHashSet(visible);
+            IntArrayList entering = new IntArrayList();
+            for (int index : octree.visibleCells(predicted)) {
+                if (!visibleSet.contains(index) && !cache.isResident(index)) {
+                    entering.add(index);
+                }
+            }
+            cache.prefetch(entering.toIntArray(), visible.length);
+        }
+    }
+
+    /**
+     * Restrict tracing to the sub-octrees inside any of the frustums, for batches of rays from several cameras,
+     * and start loading them front to back.
+     */
+    public void cullToFrustums(List<CameraFrustum> frustums) {
+        if (octree == null) return;
+
+        int[] visible = octree.visibleCells(frustums);
+        // Hits are only bounded by the distance to their own camera, so no cell is final early
+        tracer.setTraceOrder(visible, null);
+        tracer.getCache().prefetch(visible, 0);
+    }
+
+    /**
+     * Trace the given entities together with the octree, null for none.
+     */
+    public void setEntities(EntityBvh entities) {
+        if (tracer != null) {
+            tracer.setEntities(entities);
+        }
+    }
+
+    public LargeDiskOctree getOctree() {
+        return octree;
+    }
+
+    /**
+     * Checkpoint the rays in flight at the sub-octree boundaries of each sweep, null for none.
+     * The listener gets the traced rays that have not been taken yet, the sweep and the queued rays.
+     */
+    public void setCheckpointListener(RenderCheckpoint.Listener listener) {
+        if (tracer == null) return;
+        if (listener == null) {
+            tracer.setCheckpointListener(null);
+            return;
+        }
+
+        tracer.setCheckpointListener(new RenderCheckpoint.Listener() {
+            @Override
+            public boolean due() {
+                return listener.due();
+            }
+
+            @Override
+            public void write(RenderCheckpoint.InFlight rays) {
+                // Called by the tracer, the thread that owns the process queue waits for the sweep to finish
+                ArrayList<CacheRay> traced = new ArrayList<>(processQueue);
+                ArrayList<CacheRay> queued;
+                synchronized (waitQueue) {
+                    queued = new ArrayList<>(waitQueue);
+                }
+                listener.write(new RenderCheckpoint.InFlight(traced, rays.sweep, rays.cells, rays.bins, queued));
+            }
+        });
+    }
+
+    /**
+     * Continue tracing the rays in flight of a checkpoint. Traced rays are returned by the next getProcessRays,
+     * the sweep continues in the sub-octrees it had left and queued rays follow in a later sweep.
+     * Must be called before any other rays are added.
+     */
+    public void resume(RenderCheckpoint.InFlight rays) throws InterruptedException {
+        traceLock.lock();
+        try {
+            processQueue.addAll(rays.traced);
+        } finally {
+            traceLock.unlock();
+        }
+        if (!rays.sweep.isEmpty()) {
+            tracer.resumeSweep(rays.sweep.size(), rays.cells, rays.bins);
+            addRays(rays.sweep);
+        }
+        if (!rays.queued.isEmpty()) {
+            addRays(rays.queued);
+        }
+    }
+
+    public void shutdown() {
+        interrupt();
+        if (tracer != null) {
+            tracer.shutdown();
+        }
+    }
+
+    /**
+     * Rays in the batch being traced with a hit closer than this distance will not change anymore.
+     */
+    public double finalDistance() {
+        return tracer.finalDistance();
+    }
+
     public boolean doneTracing() {
-        return waitQueue.size() == 0 && traceLock.tryLock();
+        return pendingRays.get() == 0;
     }
 
-    public void addRay(CacheRay ray) throws InterruptedException {
+    /**
+     * Block until all added rays have been traced.
+     */
+    public void awaitTracing() throws InterruptedException {
+        synchronized (waitQueue) {
+            if (!waitQueue.isEmpty()) {
+                queueComplete = true;
+                waitQueue.notifyAll();
+            }
+        }
         synchronized (traceDoneMonitor) {
-            while (waitQueue.size() > MAX_RAYS_BUFFER) {
+            while (pendingRays.get() != 0) {
                 traceDoneMonitor.wait();
             }
         }
+    }
 
-        waitQueue.add(ray);
+    public void addRay(CacheRay ray) throws InterruptedException {
+        synchronized (traceDoneMonitor) {
+            // Let as many rays wait for a trace as the ray queue share of the memory budget holds
+            while (waitQueue.size() > MemoryBudget.get().maxQueuedRays()) {
+                traceDoneMonitor.wait();
+            }
+        }
 
+        if (tracer != null) {
+            tracer.resetFinalDistance();
+        }
+        pendingRays.incrementAndGet();
+        DiskRenderMetrics.get().queueDepth.increment();
         synchronized (waitQueue) {
+            if (waitQueue.isEmpty()) {
+                queuedSince = System.nanoTime();
+                queueComplete = false;
+            }
+            waitQueue.add(ray);
             waitQueue.notifyAll();
         }
     }
 
+    /**
+     * Add a group of rays that is traced in the same sweep, unless the tracer is already busy with earlier rays.
+     * Like addRay this waits for space in the buffer. Groups larger than the ray queue share of the memory budget
+     * are added in parts of that size, each traced in its own sweep.
+     */
+    public void addRays(Collection<CacheRay> rays) throws InterruptedException {
+        List<CacheRay> list = rays instanceof List ? (List<CacheRay>) rays : new ArrayList<>(rays);
+        int limit = FastMath.max(1, MemoryBudget.get().maxQueuedRays());
+        for (int from = 0; from < list.size(); from += limit) {
+            List<CacheRay> part = list.subList(from, FastMath.min(list.size(), from + limit));
+            synchronized (traceDoneMonitor) {
+                while (!waitQueue.isEmpty() && waitQueue.size() + part.size() > limit) {
+                    traceDoneMonitor.wait();
+                }
+            }
+
+            if (tracer != null) {
+                tracer.resetFinalDistance();
+            }
+            pendingRays.addAndGet(part.size());
+            DiskRenderMetrics.get().queueDepth.add(part.size());
+            synchronized (waitQueue) {
+                if (waitQueue.isEmpty()) {
+                    queuedSince = System.nanoTime();
+                }
+                waitQueue.addAll(part);
+                queueComplete = true;
+                waitQueue.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Number of rays waiting for the next sweep.
+     */
+    int queuedRays() {
+        synchronized (waitQueue) {
+            return waitQueue.size();
+        }
+    }
+
     public synchronized Collection<CacheRay> getProcessRays() {
         traceLock.lock();
         Collection<CacheRay> process = processQueue;
@@ -138,16 +478,30 @@ public class LargeDiskRenderer extends Thread {
     public void run() {
         try {
             while (!interrupted()) {
+                // Wait until the batch policy starts a sweep
+                BatchPolicy policy = BatchPolicy.get();
                 synchronized (waitQueue) {
-                    while (waitQueue.size() == 0) {
-                        waitQueue.wait();
+                    while (true) {
+                        long wait = policy.waitNanos(waitQueue.size(), System.nanoTime() - queuedSince, queueComplete);
+                        if (wait <= 0) break;
+                        if (wait == Long.MAX_VALUE) {
+                            waitQueue.wait();
+                        } else {
+                            waitQueue.wait(wait / 1_000_000, (int) (wait % 1_000_000));
+                        }
                     }
+                    queueComplete = false;
                 }
 
-                // Start tracing rays
+                // Trace the waiting rays
                 traceLock.lock();
-                tracer.traceRays(processQueue, waitQueue);
-                traceLock.unlock();
+                int traced;
+                try {
+                    traced = tracer.traceRays(processQueue, waitQueue);
+                } finally {
+                    traceLock.unlock();
+                }
+                pendingRays.addAndGet(-traced);
 
                 synchronized (traceDoneMonitor) {
                     traceDoneMonitor.notifyAll();
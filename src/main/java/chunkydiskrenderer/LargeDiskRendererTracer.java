@@ -1,31 +1,37 @@
 package chunkydiskrenderer;
 
-import it.unimi.dsi.fastutil.io.FastBufferedInputStream;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import org.apache.commons.math3.util.FastMath;
 import se.llbit.chunky.PersistentSettings;
 import se.llbit.chunky.chunk.BlockPalette;
 import se.llbit.chunky.renderer.scene.Scene;
 import se.llbit.log.Log;
 
-import java.io.DataInputStream;
-import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.ForkJoinPool;
 import java.util.stream.IntStream;
-import java.util.zip.GZIPInputStream;
 
 /**
  * Intersect rays with a dual thread architecture.
- * One thread loads the next octree. One thread intersects with the octree.
+ * The resident cache loads the next octrees. One thread intersects with the octree.
+ * Each batch is first binned by the octrees each ray passes through, so an octree is only
+ * intersected with the rays that can reach it.
  */
 public class LargeDiskRendererTracer extends Thread {
-    private ArrayList<File> octrees;
+    // Number of octrees to load ahead of the octree being traced, per storage root
+    private static final int PREFETCH_AHEAD = 2;
+    // Rays are split between workers in runs of this many, so rays of neighbouring pixels stay in the same bin
+    private static final int BIN_RUN = 64;
+    // Rays of a bin traced as one packet
+    private static final int PACKET_SIZE = 8;
+
+    private final LargeDiskOctree octree;
+    private final SubOctreeCache cache;
     private ArrayList<LargeDiskRenderer.CacheRay> rays = new ArrayList<>();
-    private ExecutorService loader = Executors.newSingleThreadExecutor();
+    private final DiskRenderMetrics metrics = DiskRenderMetrics.get();
     private int threads;
     public ForkJoinPool pool;
 
@@ -33,26 +39,130 @@ public class LargeDiskRendererTracer extends Thread {
     protected Scene scene;
 
     private MiniPackedOctree currentOctree;
-    private volatile MiniPackedOctree nextOctree;
-    private final Object octreeDoneMonitor = new Object();
+    // Octrees to sweep for the current batch in order, null to sweep all octrees
+    private volatile int[] traceOrder = null;
+    // Lower bound of the hit distance in each octree of the trace order
+    private volatile double[] traceBounds = null;
+    private volatile double finalDistance = 0;
+
+    // Entities intersected once per ray before binning, null for none
+    private volatile EntityBvh entities = null;
+
+    // Rays entering each octree, per worker thread: bins[thread][cell] holds ray indices
+    private IntArrayList[][] bins = new IntArrayList[0][0];
+
+    // Receives the rays in flight between two sub-octrees, null for none
+    private volatile RenderCheckpoint.Listener checkpointListener = null;
+    // Bins of a sweep interrupted by an earlier run, continued by the next batch
+    private volatile ResumedSweep resumedSweep = null;
+
+    private static final class ResumedSweep {
+        // Number of rays at the start of the batch that belong to the sweep
+        final int rays;
+        final int[] cells;
+        final IntArrayList[] bins;
+
+        ResumedSweep(int rays, int[] cells, IntArrayList[] bins) {
+            this.rays = rays;
+            this.cells = cells;
+            this.bins = bins;
+        }
+    }
 
     private final Object traceMonitor = new Object();
     private final Object nextTraceMonitor = new Object();
     private volatile boolean traceDone = true;
 
-    public LargeDiskRendererTracer(ArrayList<File> octrees) {
+    public LargeDiskRendererTracer(LargeDiskOctree octree) {
         super("Disk Render Tracer");
-        this.octrees = octrees;
+        this.octree = octree;
+        this.cache = octree.residentCache();
         this.pool = new ForkJoinPool(PersistentSettings.getNumThreads());
         this.threads = PersistentSettings.getNumThreads();
     }
 
+    /**
+     * Stop tracing and release the worker threads.
+     */
+    public void shutdown() {
+        interrupt();
+        pool.shutdown();
+    }
+
     public boolean traceReady() {
         return !traceDone;
     }
 
-    public void traceRays(Collection<LargeDiskRenderer.CacheRay> output, Collection<LargeDiskRenderer.CacheRay> newRays) throws InterruptedException {
-        // Block until we are done with current batch
+    /**
+     * Set the octrees swept by the following batches, in sweep order. Null sweeps all octrees.
+     * If bounds are given, bounds[i] is a non-decreasing lower bound on any hit distance in cells[i].
+     */
+    public void setTraceOrder(int[] cells, double[] bounds) {
+        traceOrder = cells;
+        traceBounds = bounds;
+    }
+
+    /**
+     * Rays in the current batch with a hit closer than this distance will not change anymore.
+     */
+    public double finalDistance() {
+        return finalDistance;
+    }
+
+    /**
+     * Set the entities traced with the following batches, null to trace voxels only.
+     */
+    public void setEntities(EntityBvh entities) {
+        this.entities = entities;
+    }
+
+    /**
+     * Forget the final distance of the previous batch before new rays are queued.
+     */
+    public void resetFinalDistance() {
+        finalDistance = 0;
+    }
+
+    /**
+     * Set the listener that checkpoints the rays in flight at sub-octree boundaries, null for none.
+     * The listener only gets the current batch; it is called from the tracing thread while no rays are traced.
+     */
+    public void setCheckpointListener(RenderCheckpoint.Listener listener) {
+        checkpointListener = listener;
+    }
+
+    /**
+     * Continue a sweep captured by a checkpoint with the next batch. The first rays of the batch must be the rays
+     * of the sweep, in the same order. They are only traced in the given sub-octrees, any rays after them are
+     * binned as usual.
+     */
+    public void resumeSweep(int rays, int[] cells, IntArrayList[] bins) {
+        resumedSweep = new ResumedSweep(rays, cells, bins);
+    }
+
+    public SubOctreeCache getCache() {
+        return cache;
+    }
+
+    /**
+     * Trace a batch of rays through all octrees, blocking until they are done.
+     * Returns the number of rays traced.
+     */
+    public int traceRays(Collection<LargeDiskRenderer.CacheRay> output, Collection<LargeDiskRenderer.CacheRay> newRays) throws InterruptedException {
+        // Copy new rays
+        synchronized (newRays) {
+            rays.addAll(newRays);
+            newRays.clear();
+        }
+        int count = rays.size();
+        metrics.queueDepth.add(-count);
+
+        synchronized (nextTraceMonitor) {
+            traceDone = false;
+            nextTraceMonitor.notifyAll();
+        }
+
+        // Block until we are done with this batch
         synchronized (traceMonitor) {
             while (!traceDone) {
                 traceMonitor.wait();
@@ -64,45 +174,261 @@ public class LargeDiskRendererTracer extends Thread {
             output.addAll(rays);
         }
         rays.clear();
+        return count;
+    }
 
-        // Copy new rays
-        if (newRays != null) {
-            synchronized (newRays) {
-                rays.addAll(newRays);
-                newRays.clear();
+    /**
+     * Number of octrees to load ahead of the octree being traced. Keeps every storage root busy, but leaves room
+     * in the cache for the octree being traced. The cache capacity follows the memory budget, so this is
+     * recomputed every sweep.
+     */
+    private int prefetchAhead() {
+        return FastMath.max(1, FastMath.min(PREFETCH_AHEAD * octree.storageRoots(), cache.capacity() - 1));
+    }
+
+    /**
+     * Sort the rays of the batch into the octrees they pass through.
+     * Rays are split between the worker threads the same way they are traced, so each worker owns its bins.
+     * Entities are intersected first, so rays are only binned into the octrees in front of an entity hit.
+     * Rays before first are left out, they are binned by a resumed sweep.
+     */
+    private boolean[] binRays(int first) {
+        int cells = octree.cellCount();
+        if (bins.length != threads || bins[0].length != cells) {
+            bins = new IntArrayList[threads][cells];
+        } else {
+            for (IntArrayList[] workerBins : bins) {
+                for (IntArrayList bin : workerBins) {
+                    if (bin != null) bin.clear();
+                }
             }
         }
 
-        synchronized (nextTraceMonitor) {
-            traceDone = false;
-            nextTraceMonitor.notifyAll();
+        EntityBvh entities = this.entities;
+        pool.submit(() -> IntStream.range(0, threads).parallel().forEach(j -> {
+            IntArrayList[] workerBins = bins[j];
+            for (int run = first + j * BIN_RUN; run < rays.size(); run += threads * BIN_RUN) {
+                int runEnd = FastMath.min(run + BIN_RUN, rays.size());
+                for (int k = run; k < runEnd; k++) {
+                    LargeDiskRenderer.CacheRay ray = rays.get(k);
+                    if (entities != null && entities.intersect(ray) && ray.occlusion) {
+                        continue;
+                    }
+                    int rayIndex = k;
+                    octree.walkCells(ray.origin.x, ray.origin.y, ray.origin.z,
+                            ray.direction.x, ray.direction.y, ray.direction.z, ray.distance, (index, tEnter) -> {
+                        IntArrayList bin = workerBins[index];
+                        if (bin == null) {
+                            bin = workerBins[index] = new IntArrayList();
+                        }
+                        bin.add(rayIndex);
+                        return true;
+                    });
+                }
+            }
+        })).join();
+
+        boolean[] used = new boolean[cells];
+        for (IntArrayList[] workerBins : bins) {
+            for (int cell = 0; cell < cells; cell++) {
+                if (workerBins[cell] != null && !workerBins[cell].isEmpty()) {
+                    used[cell] = true;
+                }
+            }
         }
+        return used;
     }
 
-    private void loadNext(int i) {
-        if (i >= octrees.size()) return;
+    /**
+     * The trace order followed by any other octrees rays pass through, such as octrees outside the
+     * camera frustum reached by secondary rays. Octrees no ray enters are skipped.
+     */
+    private int[] sweepOrder(int[] order, boolean[] used) {
+        if (order == null) {
+            order = octree.cellIndices();
+        }
 
-        loader.execute(() -> {
-            try {
-                File octreeF = octrees.get(i);
-                MiniPackedOctree octree = MiniPackedOctree.load(new DataInputStream(new FastBufferedInputStream(new GZIPInputStream(new FileInputStream(octreeF)))));
-                synchronized (octreeDoneMonitor) {
-                    nextOctree = octree;
-                    octreeDoneMonitor.notifyAll();
+        IntArrayList sweep = new IntArrayList(order.length);
+        boolean[] listed = new boolean[used.length];
+        for (int cell : order) {
+            if (listed[cell]) continue;
+            listed[cell] = true;
+            if (used[cell]) sweep.add(cell);
+        }
+        for (int cell = 0; cell < used.length; cell++) {
+            if (used[cell] && !listed[cell]) sweep.add(cell);
+        }
+        return sweep.toIntArray();
+    }
+
+    private int binnedRays(int cell) {
+        int count = 0;
+        for (IntArrayList[] workerBins : bins) {
+            if (workerBins[cell] != null) count += workerBins[cell].size();
+        }
+        return count;
+    }
+
+    /**
+     * Sweep the batch through the binned octrees on this machine.
+     * Returns the nanoseconds spent binning and intersecting rays, the part of the sweep that grows with the batch.
+     */
+    private long sweep() throws InterruptedException {
+        int[] traceCells = traceOrder;
+        double[] traceCellBounds = traceBounds;
+        ResumedSweep resumed = resumedSweep;
+        resumedSweep = null;
+        long binStart = System.nanoTime();
+        boolean[] used = binRays(resumed == null ? 0 : resumed.rays);
+        long rayNanos = System.nanoTime() - binStart;
+        if (resumed != null) {
+            resumeBins(resumed, used);
+            // The resumed rays have been traced in some octrees already, so the trace order bounds do not hold
+            traceCells = concat(resumed.cells, traceCells == null ? octree.cellIndices() : traceCells);
+            traceCellBounds = null;
+        }
+        int[] order = sweepOrder(traceCells, used);
+
+        // Lower hit distance bound of each octree in the trace order, NaN for any other octree
+        double[] bounds = null;
+        if (traceCells != null && traceCellBounds != null) {
+            bounds = new double[octree.cellCount()];
+            Arrays.fill(bounds, Double.NaN);
+            for (int i = 0; i < traceCells.length; i++) {
+                bounds[traceCells[i]] = traceCellBounds[i];
+            }
+        }
+        int prefetchAhead = prefetchAhead();
+        for (int i = 0; i < prefetchAhead && i < order.length; i++) {
+            cache.prefetch(order[i]);
+        }
+
+        // Trace through each octree
+        for (int i = 0; i < order.length; i++) {
+            if (i + prefetchAhead < order.length) {
+                cache.prefetch(order[i + prefetchAhead]);
+            }
+
+            int cell = order[i];
+            RenderCheckpoint.Listener listener = checkpointListener;
+            if (listener != null && listener.due()) {
+                listener.write(inFlight(order, i));
+            }
+            if (bounds != null && !Double.isNaN(bounds[cell])) {
+                finalDistance = bounds[cell];
+            }
+
+            // Wait for octree
+            currentOctree = cache.get(cell);
+            if (currentOctree == null) {
+                continue;
+            }
+
+            long intersectStart = System.nanoTime();
+            pool.submit(() -> IntStream.range(0, threads).parallel().forEach(j -> {
+                IntArrayList bin = bins[j][cell];
+                if (bin == null) return;
+                // Bins keep the order rays were added in, so consecutive rays are mostly neighbouring pixels
+                LargeDiskRenderer.CacheRay[] packet = new LargeDiskRenderer.CacheRay[PACKET_SIZE];
+                int packetSize = 0;
+                for (int k = 0; k < bin.size(); k++) {
+                    LargeDiskRenderer.CacheRay ray = rays.get(bin.getInt(k));
+                    // Blocked occlusion rays are dropped from the remaining octrees
+                    if (!ray.isOccluded()) {
+                        packet[packetSize++] = ray;
+                        if (packetSize == PACKET_SIZE) {
+                            currentOctree.intersectPacket(packet, packetSize, palette, scene);
+                            packetSize = 0;
+                        }
+                    }
+                }
+                if (packetSize > 0) {
+                    currentOctree.intersectPacket(packet, packetSize, palette, scene);
                 }
-            } catch (IOException e) {
-                Log.error(e);
+            })).join();
+            long intersectTime = System.nanoTime() - intersectStart;
+            metrics.intersect.record(intersectTime);
+            metrics.raysPerSubOctree.record(binnedRays(cell));
+            rayNanos += intersectTime;
+        }
+        return rayNanos;
+    }
+
+    /**
+     * Add the bins of a resumed sweep to the bins of the worker threads, splitting each bin between them.
+     */
+    private void resumeBins(ResumedSweep resumed, boolean[] used) {
+        for (int i = 0; i < resumed.cells.length; i++) {
+            int cell = resumed.cells[i];
+            IntArrayList bin = resumed.bins[i];
+            for (int k = 0; k < bin.size(); k++) {
+                int j = k % threads;
+                if (bins[j][cell] == null) {
+                    bins[j][cell] = new IntArrayList();
+                }
+                bins[j][cell].add(bin.getInt(k));
+            }
+            if (!bin.isEmpty()) used[cell] = true;
+        }
+    }
+
+    private static int[] concat(int[] a, int[] b) {
+        int[] result = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, result, a.length, b.length);
+        return result;
+    }
+
+    /**
+     * The rays of the batch with the bins of the octrees from position on in the sweep order.
+     * The renderer adds the rays it has queued and the rays of earlier batches.
+     */
+    private RenderCheckpoint.InFlight inFlight(int[] order, int position) {
+        int[] cells = Arrays.copyOfRange(order, position, order.length);
+        IntArrayList[] cellBins = new IntArrayList[cells.length];
+        for (int i = 0; i < cells.length; i++) {
+            cellBins[i] = new IntArrayList();
+            for (IntArrayList[] workerBins : bins) {
+                if (workerBins[cells[i]] != null) cellBins[i].addAll(workerBins[cells[i]]);
             }
-        });
+        }
+        return new RenderCheckpoint.InFlight(new ArrayList<>(), new ArrayList<>(rays), cells, cellBins, new ArrayList<>());
+    }
+
+    /**
+     * Trace the batch on the remote workers, if any are configured.
+     * Returns false if the batch still needs a local sweep.
+     */
+    private boolean traceRemote() throws InterruptedException {
+        RemoteWorkers remote = octree.remoteWorkers(palette);
+        if (remote == null) return false;
+
+        // Workers trace every octree, so the rays of a resumed sweep start over
+        ResumedSweep resumed = resumedSweep;
+        resumedSweep = null;
+        if (resumed != null) {
+            for (int k = 0; k < resumed.rays; k++) {
+                rays.get(k).resetHit();
+            }
+        }
+
+        EntityBvh entities = this.entities;
+        if (entities != null) {
+            pool.submit(() -> rays.parallelStream().forEach(entities::intersect)).join();
+        }
+        try {
+            remote.trace(rays);
+            return true;
+        } catch (IOException e) {
+            Log.error("Remote workers failed, tracing locally", e);
+            octree.closeRemoteWorkers();
+            return false;
+        }
     }
 
     @Override
     public void run() {
         try {
             while (!interrupted()) {
-                // Load the next octree
-                loadNext(1);
-
                 // Wait for a trace job
                 synchronized (nextTraceMonitor) {
                     while (traceDone) {
@@ -110,27 +436,15 @@ public class LargeDiskRendererTracer extends Thread {
                     }
                 }
 
-                // Trace through each octree
-                for (int i = 1; i < octrees.size(); i++) {
-                    // Wait for octree
-                    synchronized (octreeDoneMonitor) {
-                        while (nextOctree == null) {
-                            octreeDoneMonitor.wait();
-                        }
-                    }
-                    currentOctree = nextOctree;
-                    nextOctree = null;
-                    loadNext(i+1);
-
-                    pool.submit(() -> IntStream.range(0, threads).parallel().forEach(j -> {
-                        for (int k = 0; k < rays.size(); k++) {
-                            if (k % threads == j) {
-                                currentOctree.intersect(rays.get(k), palette, scene);
-                            }
-                        }
-                    })).join();
+                long sweepStart = System.nanoTime();
+                finalDistance = 0;
+                if (!traceRemote()) {
+                    long rayNanos = sweep();
+                    BatchPolicy.get().recordSweep(rays.size(), System.nanoTime() - sweepStart, rayNanos);
                 }
+                metrics.sweep.record(System.nanoTime() - sweepStart);
 
+                finalDistance = Double.POSITIVE_INFINITY;
                 synchronized (traceMonitor) {
                     traceDone = true;
                     traceMonitor.notifyAll();
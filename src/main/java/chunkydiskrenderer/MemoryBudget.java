@@ -0,0 +1,113 @@
+package chunkydiskrenderer;
+
+import org.apache.commons.math3.util.FastMath;
+import se.llbit.chunky.renderer.RenderMode;
+import se.llbit.log.Log;
+
+/**
+ * Divides one memory limit between the parts of the disk renderer that grow with the scene:
+ * queued rays, resident and prefetched sub-octrees, and the sub-octree being built.
+ * The shares follow the render mode. Previews keep more sub-octrees resident so camera moves stay cheap,
+ * final renders queue more rays so each sweep over the sub-octrees serves more samples.
+ *
+ * The limit is the system property chunkydiskrenderer.memory in megabytes, by default 3/4 of the maximum heap.
+ */
+public class MemoryBudget {
+    public static final String MEMORY_PROPERTY = "chunkydiskrenderer.memory";
+    // Shares of the limit for rays, sub-octrees and building, per mode
+    private static final double[] PREVIEW_SHARES = {0.15, 0.75, 0.10};
+    private static final double[] RENDER_SHARES = {0.50, 0.40, 0.10};
+
+    // Estimated size of a queued CacheRay with its vectors
+    private static final long RAY_BYTES = 160;
+    private static final int MIN_QUEUED_RAYS = 1 << 16;
+    // Size assumed for a resident sub-octree until one has been loaded
+    private static final long DEFAULT_TREE_BYTES = 1 << 20;
+    // One sub-octree is traced while the next one loads
+    private static final int MIN_RESIDENT_TREES = 2;
+    // Weight of each loaded sub-octree in the running average of their sizes
+    private static final double TREE_BYTES_WEIGHT = 0.1;
+    // Created after the constants above, which the constructor and getters rely on
+    private static final MemoryBudget INSTANCE = new MemoryBudget(limitFromSystemProperty());
+
+    private final long limit;
+    private volatile double[] shares = PREVIEW_SHARES;
+    private volatile double averageTreeBytes = DEFAULT_TREE_BYTES;
+
+    public MemoryBudget(long limit) {
+        this.limit = limit;
+    }
+
+    public static MemoryBudget get() {
+        return INSTANCE;
+    }
+
+    private static long limitFromSystemProperty() {
+        long heap = Runtime.getRuntime().maxMemory();
+        long limit = heap == Long.MAX_VALUE ? 1L << 32 : heap / 4 * 3;
+        String configured = System.getProperty(MEMORY_PROPERTY, "").trim();
+        if (!configured.isEmpty()) {
+            try {
+                limit = Long.parseLong(configured) << 20;
+            } catch (NumberFormatException e) {
+                Log.warn("Invalid " + MEMORY_PROPERTY + ": " + configured);
+            }
+        }
+        return limit;
+    }
+
+    public long limit() {
+        return limit;
+    }
+
+    /**
+     * Rebalance the shares for a render mode. Caches pick up the new sizes on their next insertion.
+     */
+    public void setMode(RenderMode mode) {
+        shares = mode == RenderMode.PREVIEW ? PREVIEW_SHARES : RENDER_SHARES;
+    }
+
+    public long rayBytes() {
+        return (long) (limit * shares[0]);
+    }
+
+    public long treeBytes() {
+        return (long) (limit * shares[1]);
+    }
+
+    public long buildBytes() {
+        return (long) (limit * shares[2]);
+    }
+
+    /**
+     * Number of rays that may wait in the queue of a renderer.
+     */
+    public int maxQueuedRays() {
+        return (int) FastMath.min(Integer.MAX_VALUE, FastMath.max(MIN_QUEUED_RAYS, rayBytes() / RAY_BYTES));
+    }
+
+    /**
+     * Number of sub-octrees that may be resident or loading at once, from the average size of loaded sub-octrees.
+     */
+    public int residentTrees() {
+        return (int) FastMath.min(Integer.MAX_VALUE, FastMath.max(MIN_RESIDENT_TREES, (long) (treeBytes() / averageTreeBytes)));
+    }
+
+    /**
+     * Largest number of nodes a sub-octree being built may have before it is split.
+     */
+    public long buildNodes() {
+        return buildBytes() / Integer.BYTES;
+    }
+
+    /**
+     * Record the size of a loaded sub-octree.
+     */
+    public void recordTree(MiniPackedOctree octree) {
+        averageTreeBytes += (octree.memoryBytes() - averageTreeBytes) * TREE_BYTES_WEIGHT;
+    }
+
+    public double averageTreeBytes() {
+        return averageTreeBytes;
+    }
+}
@@ -1,5 +1,9 @@
 package chunkydiskrenderer;
 
+import it.unimi.dsi.fastutil.ints.Int2LongMap;
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
+import it.unimi.dsi.fastutil.ints.Int2LongOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
 import it.unimi.dsi.fastutil.ints.IntIntMutablePair;
 import org.apache.commons.math3.util.FastMath;
 import se.llbit.chunky.block.Block;
@@ -14,17 +18,43 @@ import java.io.IOException;
 
 /**
  * This is an internal octree based off of PackedOctree.
+ * Nodes are ints: positive values index the first of eight children, other values are negated block types.
+ * Compacted octrees that are small enough are packed into 16 bit words with a local palette and widened
+ * again when they are modified.
  */
 public class MiniPackedOctree {
     private static final int MAX_ARRAY_SIZE = Integer.MAX_VALUE - 16;
     private static final int DEFAULT_INITIAL_SIZE = 64;
     private static final double ARRAY_RESIZE_MULTIPLIER = 1.5;
+    // Surfaces at least this opaque block occlusion rays
+    private static final double OCCLUSION_ALPHA = 0.99;
+
+    private static final byte FORMAT_INT = 0;
+    private static final byte FORMAT_PACKED = 1;
+    // Set in the format byte if the occupancy follows it
+    private static final byte FORMAT_OCCUPANCY = 0x10;
+    // Packed leaves have this bit set and hold a local palette index, packed branches hold a child block number
+    private static final int PACKED_LEAF = 0x8000;
+    private static final int MAX_PACKED_BLOCKS = 0x8000;
+    // Entry distance and axis written by enter for single rays, kept per thread so intersect does not allocate
+    private static final ThreadLocal<EnterScratch> ENTER_SCRATCH = ThreadLocal.withInitial(EnterScratch::new);
+
+    private static final class EnterScratch {
+        final double[] tEnter = new double[1];
+        final int[] axis = new int[1];
+    }
 
     public final int depth;
     public Vector3 center;
     public int[] treeData;
     public int size;
     private int freeHead;
+    // Packed nodes of a compacted octree, null when the nodes are in treeData
+    private char[] packedData = null;
+    // Block types of the local palette indices in packedData
+    private int[] localPalette = null;
+    // Occupied space of the octree, built when first needed and dropped when the octree is modified
+    private volatile Occupancy occupancy = null;
 
     public MiniPackedOctree(int depth, Vector3 center) {
         this.depth = depth;
@@ -35,6 +65,129 @@ public class MiniPackedOctree {
         this.center = center;
     }
 
+    /**
+     * The node at index in the int encoding, whether this octree is packed or not.
+     */
+    private int node(int index) {
+        if (packedData == null) {
+            return treeData[index];
+        }
+        int word = packedData[index];
+        return (word & PACKED_LEAF) != 0 ? -localPalette[word & ~PACKED_LEAF] : 1 + (word << 3);
+    }
+
+    /**
+     * A copy of this octree that can be modified independently.
+     */
+    public MiniPackedOctree copy() {
+        MiniPackedOctree copy = new MiniPackedOctree(depth, new Vector3(center.x, center.y, center.z));
+        copy.size = size;
+        copy.freeHead = freeHead;
+        if (packedData != null) {
+            copy.treeData = null;
+            copy.packedData = packedData.clone();
+            copy.localPalette = localPalette.clone();
+        } else {
+            copy.treeData = treeData.clone();
+        }
+        copy.occupancy = occupancy;
+        return copy;
+    }
+
+    /**
+     * Approximate heap size of the nodes of this octree.
+     */
+    public long memoryBytes() {
+        Occupancy occupancy = this.occupancy;
+        long bytes = occupancy != null ? occupancy.memoryBytes() : 0;
+        if (packedData != null) {
+            return bytes + (long) packedData.length * Character.BYTES + (long) localPalette.length * Integer.BYTES;
+        }
+        return bytes + (long) treeData.length * Integer.BYTES;
+    }
+
+    /**
+     * The occupied space of this octree.
+     */
+    public Occupancy occupancy() {
+        Occupancy occupancy = this.occupancy;
+        if (occupancy == null) {
+            Occupancy.Builder builder = new Occupancy.Builder(depth);
+            addOccupied(builder, 0, depth, 0, 0, 0);
+            occupancy = this.occupancy = builder.build();
+        }
+        return occupancy;
+    }
+
+    private void addOccupied(Occupancy.Builder builder, int nodeIndex, int level, int x, int y, int z) {
+        int node = node(nodeIndex);
+        if (node <= 0) {
+            if (node != 0) {
+                builder.add(x, y, z, level);
+            }
+            return;
+        }
+        int half = 1 << (level - 1);
+        for (int i = 0; i < 8; i++) {
+            addOccupied(builder, node + i, level - 1,
+                    x + ((i >> 2) & 1) * half, y + ((i >> 1) & 1) * half, z + (i & 1) * half);
+        }
+    }
+
+    public boolean isPacked() {
+        return packedData != null;
+    }
+
+    /**
+     * Unpack the nodes into treeData so the octree can be modified, dropping its occupancy.
+     */
+    private void widen() {
+        occupancy = null;
+        if (packedData == null) return;
+
+        int[] widened = new int[size];
+        for (int i = 0; i < size; i++) {
+            widened[i] = node(i);
+        }
+        treeData = widened;
+        packedData = null;
+        localPalette = null;
+        freeHead = -1;
+    }
+
+    /**
+     * Pack the nodes of a compacted octree into 16 bit words if there are few enough child blocks and block types.
+     */
+    private void pack() {
+        if (size > 1 + 8 * MAX_PACKED_BLOCKS) return;
+
+        Int2IntOpenHashMap localIndices = new Int2IntOpenHashMap();
+        localIndices.defaultReturnValue(-1);
+        IntArrayList types = new IntArrayList();
+        char[] packed = new char[size];
+        for (int i = 0; i < size; i++) {
+            int value = treeData[i];
+            if (value > 0) {
+                // Compacted child blocks start at 1 and are contiguous
+                packed[i] = (char) ((value - 1) >> 3);
+                continue;
+            }
+
+            int local = localIndices.get(-value);
+            if (local < 0) {
+                if (types.size() == MAX_PACKED_BLOCKS) return;
+                local = types.size();
+                localIndices.put(-value, local);
+                types.add(-value);
+            }
+            packed[i] = (char) (PACKED_LEAF | local);
+        }
+
+        packedData = packed;
+        localPalette = types.toIntArray();
+        treeData = null;
+    }
+
     private int findSpace() {
         if (freeHead != -1) {
             int index = freeHead;
@@ -48,7 +201,8 @@ public class MiniPackedOctree {
             return index;
         }
 
-        long newSize = (long) FastMath.ceil(treeData.length * ARRAY_RESIZE_MULTIPLIER);
+        // Trimmed arrays can be too small for a multiplier to make room
+        long newSize = FastMath.max((long) FastMath.ceil(treeData.length * ARRAY_RESIZE_MULTIPLIER), size + 8);
         if (newSize > MAX_ARRAY_SIZE) {
             if (MAX_ARRAY_SIZE - size > 8) {
                 newSize = MAX_ARRAY_SIZE;
@@ -94,6 +248,7 @@ public class MiniPackedOctree {
     }
 
     public void set(int type, int x, int y, int z) {
+        widen();
         int[] parents = new int[depth];
         int nodeIndex = 0;
         int position;
@@ -132,36 +287,149 @@ public class MiniPackedOctree {
 
             if (allSame) {
                 mergeNode(parentIndex, treeData[nodeIndex]);
+                // Continue with the merged node, the children it replaced are freed
+                nodeIndex = parentIndex;
+            } else {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Set a cube of 2^cubeDepth blocks with its origin at (x, y, z), which must be a multiple of the cube size.
+     * Types are indexed (z * size + y) * size + x, like Octree.OctreeImplementation.setCube.
+     * The subtree of the cube is built bottom-up with uniform octants merged as they are built,
+     * then replaces the node covering the cube.
+     */
+    public void setCube(int cubeDepth, int[] types, int x, int y, int z) {
+        widen();
+        // Sections of a single block type, like air or deep stone, are common enough to check for first
+        int cube = isUniform(types) ? -types[0] : buildCube(types, 1 << cubeDepth, cubeDepth, 0, 0, 0, new int[cubeDepth + 1][8]);
+
+        int[] parents = new int[depth - cubeDepth];
+        int nodeIndex = 0;
+        for (int i = depth - 1; i >= cubeDepth; i--) {
+            parents[i - cubeDepth] = nodeIndex;
+
+            if (cube <= 0 && treeData[nodeIndex] == cube) {
+                return;
+            }
+
+            if (treeData[nodeIndex] <= 0) {
+                subdivideNode(nodeIndex);
+            }
+
+            int xbit = 1 & (x >> i);
+            int ybit = 1 & (y >> i);
+            int zbit = 1 & (z >> i);
+            nodeIndex = treeData[nodeIndex] + ((xbit << 2) | (ybit << 1) | zbit);
+        }
+
+        freeSubtree(treeData[nodeIndex]);
+        treeData[nodeIndex] = cube;
+        if (cube > 0) {
+            return;
+        }
+
+        for (int parentIndex : parents) {
+            boolean allSame = true;
+            for (int j = 0; j < 8; j++) {
+                if (!nodeEquals(treeData[parentIndex] + j, nodeIndex)) {
+                    allSame = false;
+                    break;
+                }
+            }
+
+            if (allSame) {
+                mergeNode(parentIndex, treeData[nodeIndex]);
+                nodeIndex = parentIndex;
             } else {
                 break;
             }
         }
     }
 
+    /**
+     * Build the node of the octant at level with its origin at (x, y, z) inside the cube.
+     * Children are collected in scratch[level] and only stored if they cannot be merged.
+     */
+    private int buildCube(int[] types, int size, int level, int x, int y, int z, int[][] scratch) {
+        if (level == 0) {
+            return -types[(z * size + y) * size + x];
+        }
+
+        int[] children = scratch[level];
+        boolean uniform = true;
+        if (level == 1) {
+            // Read the eight blocks directly, child i is at x + (i >> 2), y + ((i >> 1) & 1), z + (i & 1)
+            int base = (z * size + y) * size + x;
+            int area = size * size;
+            for (int i = 0; i < 8; i++) {
+                children[i] = -types[base + (i & 1) * area + ((i >> 1) & 1) * size + (i >> 2)];
+                uniform &= children[i] == children[0];
+            }
+        } else {
+            int half = 1 << (level - 1);
+            for (int i = 0; i < 8; i++) {
+                children[i] = buildCube(types, size, level - 1,
+                        x + ((i >> 2) & 1) * half, y + ((i >> 1) & 1) * half, z + (i & 1) * half, scratch);
+                uniform &= children[i] <= 0 && children[i] == children[0];
+            }
+        }
+        if (uniform) {
+            return children[0];
+        }
+
+        int firstChildIndex = findSpace();
+        System.arraycopy(children, 0, treeData, firstChildIndex, 8);
+        return firstChildIndex;
+    }
+
+    private static boolean isUniform(int[] types) {
+        int first = types[0];
+        for (int type : types) {
+            if (type != first) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Free the children of a node and all their descendants. Leaves have nothing to free.
+     */
+    private void freeSubtree(int node) {
+        if (node <= 0) return;
+        for (int i = 0; i < 8; i++) {
+            freeSubtree(treeData[node + i]);
+        }
+        freeSpace(node);
+    }
+
     public void getWithLevel(IntIntMutablePair outTypeAndLevel, int x, int y, int z) {
         int nodeIndex = 0;
         int level = depth;
-        while(treeData[nodeIndex] > 0) {
+        int node;
+        while((node = node(nodeIndex)) > 0) {
             level -= 1;
             int lx = x >>> level;
             int ly = y >>> level;
             int lz = z >>> level;
-            nodeIndex = treeData[nodeIndex] + (((lx & 1) << 2) | ((ly & 1) << 1) | (lz & 1));
+            nodeIndex = node + (((lx & 1) << 2) | ((ly & 1) << 1) | (lz & 1));
         }
-        outTypeAndLevel.left(-treeData[nodeIndex]).right(level);
+        outTypeAndLevel.left(-node).right(level);
     }
 
     public int get(int x, int y, int z) {
         int nodeIndex = 0;
         int level = depth;
-        while(treeData[nodeIndex] > 0) {
+        int node;
+        while((node = node(nodeIndex)) > 0) {
             level -= 1;
             int lx = 1 & (x >>> level);
             int ly = 1 & (y >>> level);
             int lz = 1 & (z >>> level);
-            nodeIndex = treeData[nodeIndex] + ((lx << 2) | (ly << 1) | lz);
+            nodeIndex = node + ((lx << 2) | (ly << 1) | lz);
         }
-        return -treeData[nodeIndex];
+        return -node;
     }
 
     public long nodeCount() {
@@ -169,218 +437,531 @@ public class MiniPackedOctree {
     }
 
     private long countNodes(int nodeIndex) {
-        if (treeData[nodeIndex] > 0) {
+        if (node(nodeIndex) > 0) {
             long total = 1;
             for (int i = 0; i < 8; i++) {
-                total += countNodes(treeData[nodeIndex] + i);
+                total += countNodes(node(nodeIndex) + i);
             }
             return total;
         }
         return 1;
     }
 
-    public boolean intersect(LargeDiskRenderer.CacheRay ray, BlockPalette palette, Scene scene) {
-        float temp = ray.distance;
-
-        if (!isInside(ray) && !enterOctree(ray))
-            return false;
-
-        float distance = ray.distance;
-        ray.distance = temp;
-
-        float invDx = 1 / ray.direction.x;
-        float invDy = 1 / ray.direction.y;
-        float invDz = 1 / ray.direction.z;
-        float offsetX = -ray.origin.x * invDx;
-        float offsetY = -ray.origin.y * invDy;
-        float offsetZ = -ray.origin.z * invDz;
+    /**
+     * Split this octree into its eight octants, one octree of depth - 1 each, in child order.
+     */
+    public MiniPackedOctree[] split() {
+        MiniPackedOctree[] octants = new MiniPackedOctree[8];
+        int half = 1 << (depth - 1);
+        for (int i = 0; i < 8; i++) {
+            octants[i] = new MiniPackedOctree(depth - 1, new Vector3(
+                    center.x + ((i >> 2) & 1) * half, center.y + ((i >> 1) & 1) * half, center.z + (i & 1) * half));
+            if (node(0) > 0) {
+                copySubtree(octants[i], node(0) + i, 0);
+            } else {
+                octants[i].treeData[0] = node(0);
+            }
+        }
+        return octants;
+    }
 
-        IntIntMutablePair typeAndLevel = new IntIntMutablePair(0, 0);
-        while (true) {
-            // Already have a closer intersection
-            if (ray.distance < distance) return false;
+    /**
+     * Join eight octants of depth - 1, in child order, into one octree. Null octants are empty.
+     */
+    public static MiniPackedOctree join(MiniPackedOctree[] octants, int depth, Vector3 center) {
+        MiniPackedOctree tree = new MiniPackedOctree(depth, center);
+        int firstChildIndex = tree.findSpace();
+        tree.treeData[0] = firstChildIndex;
+        for (int i = 0; i < 8; i++) {
+            if (octants[i] != null) {
+                octants[i].copySubtree(tree, 0, firstChildIndex + i);
+            }
+        }
 
-            int x = (int) (ray.origin.x + ray.direction.x * (distance + Ray.OFFSET));
-            int y = (int) (ray.origin.y + ray.direction.y * (distance + Ray.OFFSET));
-            int z = (int) (ray.origin.z + ray.direction.z * (distance + Ray.OFFSET));
+        for (int i = 0; i < 8; i++) {
+            if (tree.treeData[firstChildIndex + i] > 0 || tree.treeData[firstChildIndex + i] != tree.treeData[firstChildIndex]) {
+                return tree;
+            }
+        }
+        tree.mergeNode(0, tree.treeData[firstChildIndex]);
+        return tree;
+    }
 
-            int lx = x >>> depth;
-            int ly = x >>> depth;
-            int lz = x >>> depth;
+    private void copySubtree(MiniPackedOctree target, int nodeIndex, int targetIndex) {
+        int node = node(nodeIndex);
+        if (node <= 0) {
+            target.treeData[targetIndex] = node;
+            return;
+        }
 
-            if (lx != 0 || ly != 0 || lz != 0)
-                return false;
+        int firstChildIndex = target.findSpace();
+        target.treeData[targetIndex] = firstChildIndex;
+        for (int i = 0; i < 8; i++) {
+            copySubtree(target, node + i, firstChildIndex + i);
+        }
+    }
 
-            getWithLevel(typeAndLevel, x, y, z);
-            int type = typeAndLevel.leftInt();
-            int level = typeAndLevel.rightInt();
+    /**
+     * Build a coarse copy of this octree that only keeps the upper levels.
+     * Nodes below those levels are collapsed to the type covering most of their volume.
+     */
+    public MiniPackedOctree downsample(int levels) {
+        MiniPackedOctree proxy = new MiniPackedOctree(depth, center);
+        copyCoarse(proxy, 0, 0, depth, FastMath.max(depth - levels, 0), new Int2LongOpenHashMap());
+        proxy.compact();
+        return proxy;
+    }
 
-            lx = x >>> level;
-            ly = y >>> level;
-            lz = z >>> level;
+    private void copyCoarse(MiniPackedOctree proxy, int nodeIndex, int proxyIndex, int level, int minLevel, Int2LongOpenHashMap volumes) {
+        int node = node(nodeIndex);
+        if (node <= 0) {
+            proxy.treeData[proxyIndex] = node;
+            return;
+        }
 
-            Block currentBlock = palette.get(type);
-            if (!currentBlock.invisible) {
-                Ray rayTest = new Ray();
-                rayTest.setCurrentMaterial(currentBlock);
-                rayTest.o.x = ray.origin.x + ray.direction.x * (distance + Ray.OFFSET);
-                rayTest.o.y = ray.origin.y + ray.direction.y * (distance + Ray.OFFSET);
-                rayTest.o.z = ray.origin.z + ray.direction.z * (distance + Ray.OFFSET);
-                rayTest.d.x = ray.direction.x;
-                rayTest.d.y = ray.direction.y;
-                rayTest.d.z = ray.direction.z;
-                rayTest.n.x = ray.normal.x;
-                rayTest.n.y = ray.normal.y;
-                rayTest.n.z = ray.normal.z;
-                if (currentBlock.intersect(rayTest, scene)) {
-                    ray.distance = (float) (rayTest.distance + distance);
-                    ray.color.x = (float) rayTest.color.x;
-                    ray.color.y = (float) rayTest.color.y;
-                    ray.color.z = (float) rayTest.color.z;
-                    ray.emittance.x = (float) rayTest.emittance.x;
-                    ray.emittance.y = (float) rayTest.emittance.y;
-                    ray.emittance.z = (float) rayTest.emittance.z;
-                    return true;
+        if (level == minLevel) {
+            volumes.clear();
+            addVolumes(nodeIndex, level, volumes);
+
+            int type = 0;
+            long volume = -1;
+            for (Int2LongMap.Entry entry : volumes.int2LongEntrySet()) {
+                // Prefer blocks over air on ties so thin features survive
+                if (entry.getLongValue() > volume || (entry.getLongValue() == volume && type == 0)) {
+                    type = entry.getIntKey();
+                    volume = entry.getLongValue();
                 }
             }
+            proxy.treeData[proxyIndex] = -type;
+            return;
+        }
 
-            // No intersection, exit current octree leaf.
-            int nx = 0, ny = 0, nz = 0;
-            float tNear = Float.POSITIVE_INFINITY;
+        int firstChildIndex = proxy.findSpace();
+        proxy.treeData[proxyIndex] = firstChildIndex;
+        for (int i = 0; i < 8; i++) {
+            copyCoarse(proxy, node + i, firstChildIndex + i, level - 1, minLevel, volumes);
+        }
 
-            float t = (lx << level) * invDx + offsetX;
-            if (t > distance + Ray.EPSILON) {
-                tNear = t;
-                nx = 1;
-            }
-            t = ((lx + 1) << level) * invDx + offsetX;
-            if (t < tNear && t > distance + Ray.EPSILON) {
-                tNear = t;
-                nx = -1;
+        // Merge children that collapsed to the same type
+        for (int i = 0; i < 8; i++) {
+            if (proxy.treeData[firstChildIndex + i] > 0 || proxy.treeData[firstChildIndex + i] != proxy.treeData[firstChildIndex]) {
+                return;
             }
+        }
+        proxy.mergeNode(proxyIndex, proxy.treeData[firstChildIndex]);
+    }
 
-            t = (ly << level) * invDy + offsetY;
-            if (t < tNear && t > distance + Ray.EPSILON) {
-                tNear = t;
-                ny = 1;
-                nx = 0;
-            }
-            t = ((ly + 1) << level) * invDy + offsetY;
-            if (t < tNear && t > distance + Ray.EPSILON) {
-                tNear = t;
-                ny = -1;
-                nx = 0;
+    private void addVolumes(int nodeIndex, int level, Int2LongOpenHashMap volumes) {
+        int node = node(nodeIndex);
+        if (node > 0) {
+            for (int i = 0; i < 8; i++) {
+                addVolumes(node + i, level - 1, volumes);
             }
+        } else {
+            volumes.addTo(-node, 1L << (3 * level));
+        }
+    }
 
-            t = (lz << level) * invDz + offsetZ;
-            if (t < tNear && t > distance + Ray.EPSILON) {
-                tNear = t;
-                nz = 1;
-                nx = ny = 0;
-            }
-            t = ((lz + 1) << level) * invDz + offsetZ;
-            if (t < tNear && t > distance + Ray.EPSILON) {
-                tNear = t;
-                nz = -1;
-                nx = ny = 0;
+    /**
+     * Intersect a ray with this octree, updating the ray if a closer hit is found.
+     * The ray is traced in the local frame of this octree, offset by its center.
+     */
+    public boolean intersect(LargeDiskRenderer.CacheRay ray, BlockPalette palette, Scene scene) {
+        Occupancy occupancy = occupancy();
+        EnterScratch scratch = ENTER_SCRATCH.get();
+        double distance = enter(ray, occupancy, scratch.tEnter, scratch.axis, 0);
+        if (Double.isNaN(distance))
+            return false;
+        return traverse(ray, palette, scene, occupancy, scratch.tEnter[0], distance, scratch.axis[0]);
+    }
+
+    /**
+     * Intersect a packet of coherent rays with this octree, such as rays of adjacent pixels,
+     * with the same result as intersecting them one at a time.
+     * The rays step through empty space together, one leaf per ray each round, and a ray landing in the leaf
+     * the ray before it looked up reuses that leaf instead of descending from the root. Other lookups still
+     * descend from the root one ray at a time, the packet does not share interior nodes.
+     * A ray leaves the packet at the first visible block and is finished by the single ray traversal.
+     * Once fewer than half the lookups of a round are shared the packet has diverged,
+     * and the remaining rays are finished one at a time.
+     */
+    public void intersectPacket(LargeDiskRenderer.CacheRay[] rays, int count, BlockPalette palette, Scene scene) {
+        if (count == 1) {
+            intersect(rays[0], palette, scene);
+            return;
+        }
+
+        Occupancy occupancy = occupancy();
+        double[] tEnter = new double[count];
+        double[] distances = new double[count];
+        int[] axes = new int[count];
+        int active = 0;
+        for (int k = 0; k < count; k++) {
+            distances[k] = enter(rays[k], occupancy, tEnter, axes, k);
+            if (!Double.isNaN(distances[k])) {
+                active |= 1 << k;
             }
+        }
+
+        IntIntMutablePair typeAndLevel = new IntIntMutablePair(0, 0);
+        while (active != 0) {
+            // The leaf looked up last this round, in units of its size
+            int leafX = -1, leafY = -1, leafZ = -1, leafLevel = 0, leafType = 0;
+            int lookups = 0, shared = 0;
+            for (int k = 0; k < count; k++) {
+                if ((active & (1 << k)) == 0) continue;
+                LargeDiskRenderer.CacheRay ray = rays[k];
+                double distance = distances[k];
+                if (distance >= ray.distance) {
+                    active &= ~(1 << k);
+                    continue;
+                }
+
+                double ox = ray.origin.x - center.x;
+                double oy = ray.origin.y - center.y;
+                double oz = ray.origin.z - center.z;
+                double dx = ray.direction.x;
+                double dy = ray.direction.y;
+                double dz = ray.direction.z;
+                int x = (int) FastMath.floor(ox + dx * (distance + Ray.OFFSET));
+                int y = (int) FastMath.floor(oy + dy * (distance + Ray.OFFSET));
+                int z = (int) FastMath.floor(oz + dz * (distance + Ray.OFFSET));
+                if (((x | y | z) >>> depth) != 0) {
+                    active &= ~(1 << k);
+                    continue;
+                }
+
+                // Empty blocks are stepped over without a lookup
+                int level = occupancy.emptyLevel(x, y, z);
+                if (level < 0) {
+                    int type;
+                    if ((x >>> leafLevel) == leafX && (y >>> leafLevel) == leafY && (z >>> leafLevel) == leafZ) {
+                        type = leafType;
+                        level = leafLevel;
+                        shared++;
+                    } else {
+                        getWithLevel(typeAndLevel, x, y, z);
+                        type = leafType = typeAndLevel.leftInt();
+                        level = leafLevel = typeAndLevel.rightInt();
+                        leafX = x >>> level;
+                        leafY = y >>> level;
+                        leafZ = z >>> level;
+                        lookups++;
+                    }
+
+                    if (!palette.get(type).invisible) {
+                        active &= ~(1 << k);
+                        traverse(ray, palette, scene, occupancy, tEnter[k], distance, axes[k]);
+                        continue;
+                    }
+                }
 
-            ray.normal.x = nx;
-            ray.normal.y = ny;
-            ray.normal.z = nz;
+                // Exit the leaf through the nearest far plane
+                int lx = x >>> level;
+                int ly = y >>> level;
+                int lz = z >>> level;
+                double invDx = 1 / dx;
+                double invDy = 1 / dy;
+                double invDz = 1 / dz;
+                double tNext = Double.POSITIVE_INFINITY;
+                int axis = -1;
+                double t = ((dx > 0 ? lx + 1 : lx) << level) * invDx - ox * invDx;
+                if (t < tNext) { tNext = t; axis = 0; }
+                t = ((dy > 0 ? ly + 1 : ly) << level) * invDy - oy * invDy;
+                if (t < tNext) { tNext = t; axis = 1; }
+                t = ((dz > 0 ? lz + 1 : lz) << level) * invDz - oz * invDz;
+                if (t < tNext) { tNext = t; axis = 2; }
+                distances[k] = FastMath.max(tNext, distance + Ray.EPSILON);
+                axes[k] = axis;
+            }
 
-            distance += tNear;
+            if (shared < lookups) {
+                for (int k = 0; k < count; k++) {
+                    if ((active & (1 << k)) != 0) {
+                        traverse(rays[k], palette, scene, occupancy, tEnter[k], distances[k], axes[k]);
+                    }
+                }
+                return;
+            }
         }
     }
 
-    private boolean isInside(LargeDiskRenderer.CacheRay ray) {
-        int x = (int) ray.origin.x;
-        int y = (int) ray.origin.y;
-        int z = (int) ray.origin.z;
+    /**
+     * The distance at which a ray reaches the occupied space of this octree, NaN if it misses it.
+     * Everything before that is air, so rays are only traced from there.
+     * The distance at which the ray enters the octree is stored in tEnter[k],
+     * the axis of the face it reaches occupied space through in axes[k], -1 if the ray starts inside.
+     */
+    private double enter(LargeDiskRenderer.CacheRay ray, Occupancy occupancy, double[] tEnter, int[] axes, int k) {
+        if (occupancy.isEmpty())
+            return Double.NaN;
+
+        double ox = ray.origin.x - center.x;
+        double oy = ray.origin.y - center.y;
+        double oz = ray.origin.z - center.z;
+        double dx = ray.direction.x;
+        double dy = ray.direction.y;
+        double dz = ray.direction.z;
+        double invDx = 1 / dx;
+        double invDy = 1 / dy;
+        double invDz = 1 / dz;
+        double offsetX = -ox * invDx;
+        double offsetY = -oy * invDy;
+        double offsetZ = -oz * invDz;
+
+        int octreeSize = 1 << depth;
+        tEnter[k] = enterBox(ox, oy, oz, invDx, invDy, invDz,
+                0, 0, 0, octreeSize, octreeSize, octreeSize, axes, k);
+        if (Double.isNaN(tEnter[k]))
+            return Double.NaN;
+        double distance = enterBox(ox, oy, oz, invDx, invDy, invDz,
+                occupancy.minX, occupancy.minY, occupancy.minZ, occupancy.maxX, occupancy.maxY, occupancy.maxZ, axes, k);
+        if (Double.isNaN(distance))
+            return Double.NaN;
+
+        // Walk the coarse occupancy grid to the first occupied block
+        int shift = occupancy.coarseShift;
+        int axis = axes[k];
+        while (distance < ray.distance) {
+            int x = (int) FastMath.floor(ox + dx * (distance + Ray.OFFSET));
+            int y = (int) FastMath.floor(oy + dy * (distance + Ray.OFFSET));
+            int z = (int) FastMath.floor(oz + dz * (distance + Ray.OFFSET));
+            if (((x | y | z) >>> depth) != 0)
+                break;
+            if (occupancy.isCoarseOccupied(x, y, z)) {
+                axes[k] = axis;
+                return distance;
+            }
 
-        int lx = x >>> depth;
-        int ly = y >>> depth;
-        int lz = z >>> depth;
+            int lx = x >>> shift;
+            int ly = y >>> shift;
+            int lz = z >>> shift;
+            double tNext = Double.POSITIVE_INFINITY;
+            double t = ((dx > 0 ? lx + 1 : lx) << shift) * invDx + offsetX;
+            if (t < tNext) { tNext = t; axis = 0; }
+            t = ((dy > 0 ? ly + 1 : ly) << shift) * invDy + offsetY;
+            if (t < tNext) { tNext = t; axis = 1; }
+            t = ((dz > 0 ? lz + 1 : lz) << shift) * invDz + offsetZ;
+            if (t < tNext) { tNext = t; axis = 2; }
+            distance = FastMath.max(tNext, distance + Ray.EPSILON);
+        }
+        return Double.NaN;
+    }
 
-        return lx == 0 && ly == 0 && lz == 0;
+    /**
+     * AABB intersection of a ray with a box in the local frame of this octree, NaN if it misses the box.
+     * The axis of the face it enters through is stored in axes[k], -1 if the ray starts inside.
+     */
+    private static double enterBox(double ox, double oy, double oz, double invDx, double invDy, double invDz,
+                                   int x0, int y0, int z0, int x1, int y1, int z1, int[] axes, int k) {
+        double distance = 0;
+        double tMax = Double.POSITIVE_INFINITY;
+        int axis = -1;
+
+        double t0 = (x0 - ox) * invDx;
+        double t1 = (x1 - ox) * invDx;
+        if (t0 > t1) { double t = t0; t0 = t1; t1 = t; }
+        if (t0 > distance) { distance = t0; axis = 0; }
+        if (t1 < tMax) tMax = t1;
+
+        t0 = (y0 - oy) * invDy;
+        t1 = (y1 - oy) * invDy;
+        if (t0 > t1) { double t = t0; t0 = t1; t1 = t; }
+        if (t0 > distance) { distance = t0; axis = 1; }
+        if (t1 < tMax) tMax = t1;
+
+        t0 = (z0 - oz) * invDz;
+        t1 = (z1 - oz) * invDz;
+        if (t0 > t1) { double t = t0; t0 = t1; t1 = t; }
+        if (t0 > distance) { distance = t0; axis = 2; }
+        if (t1 < tMax) tMax = t1;
+
+        if (tMax < distance)
+            return Double.NaN;
+        axes[k] = axis;
+        return distance;
     }
 
-    private boolean enterOctree(LargeDiskRenderer.CacheRay ray) {
-        float nx, ny, nz;
-        float octree_size = 1 << depth;
+    /**
+     * Trace a ray from distance on, having entered this octree at tEnter and the current leaf through the face on axis.
+     * Every leaf the ray passed through between tEnter and distance must be invisible.
+     */
+    private boolean traverse(LargeDiskRenderer.CacheRay ray, BlockPalette palette, Scene scene, Occupancy occupancy,
+                             double tEnter, double distance, int axis) {
+        double ox = ray.origin.x - center.x;
+        double oy = ray.origin.y - center.y;
+        double oz = ray.origin.z - center.z;
+        double dx = ray.direction.x;
+        double dy = ray.direction.y;
+        double dz = ray.direction.z;
+
+        double invDx = 1 / dx;
+        double invDy = 1 / dy;
+        double invDz = 1 / dz;
+        double offsetX = -ox * invDx;
+        double offsetY = -oy * invDy;
+        double offsetZ = -oz * invDz;
+
+        // The normal of the face the ray entered the current leaf through
+        int nx = axis == 0 ? (dx > 0 ? -1 : 1) : 0;
+        int ny = axis == 1 ? (dy > 0 ? -1 : 1) : 0;
+        int nz = axis == 2 ? (dz > 0 ? -1 : 1) : 0;
 
-        // AABB intersection with the octree boundary
-        float tMin, tMax;
-        float invDirX = 1 / ray.direction.x;
-        if (invDirX >= 0) {
-            tMin = -ray.origin.x * invDirX;
-            tMax = (octree_size - ray.origin.x) * invDirX;
+        IntIntMutablePair typeAndLevel = new IntIntMutablePair(0, 0);
+        // Translucent surfaces are recorded in a segment and the ray continues behind them
+        LargeDiskRenderer.Segment segment = null;
+        int medium = LargeDiskRenderer.Segment.NO_MEDIUM;
+        // Every step moves the ray forward, so it is still at the boundary if no leaf was stepped through
+        boolean entry = distance == tEnter;
+        // Stop as soon as there already is a closer intersection
+        while (distance < ray.distance) {
+            double px = ox + dx * (distance + Ray.OFFSET);
+            double py = oy + dy * (distance + Ray.OFFSET);
+            double pz = oz + dz * (distance + Ray.OFFSET);
+            int x = (int) FastMath.floor(px);
+            int y = (int) FastMath.floor(py);
+            int z = (int) FastMath.floor(pz);
+
+            // Left the octree
+            if (((x | y | z) >>> depth) != 0)
+                break;
 
-            nx = -1;
-            ny = nz = 0;
-        } else {
-            tMin = (octree_size - ray.origin.x) * invDirX;
-            tMax = -ray.origin.x * invDirX;
+            // Empty blocks are stepped over without descending the octree
+            int type = 0;
+            int level = occupancy.emptyLevel(x, y, z);
+            if (level < 0) {
+                getWithLevel(typeAndLevel, x, y, z);
+                type = typeAndLevel.leftInt();
+                level = typeAndLevel.rightInt();
+            }
 
-            nx = 1;
-            ny = nz = 0;
-        }
+            Block currentBlock = palette.get(type);
+            if (currentBlock.invisible) {
+                medium = LargeDiskRenderer.Segment.NO_MEDIUM;
+            } else if (ray.occlusion || type != medium || currentBlock.localIntersect) {
+                // Full opaque blocks stop occlusion rays without any shading
+                if (ray.occlusion && currentBlock.opaque && !currentBlock.localIntersect) {
+                    ray.distance = (float) distance;
+                    return true;
+                }
 
-        float tYMin, tYMax;
-        float invDirY = 1 / ray.direction.y;
-        if (invDirY >= 0) {
-            tYMin = -ray.origin.y * invDirY;
-            tYMax = (octree_size - ray.origin.y) * invDirY;
-        } else {
-            tYMin = (octree_size - ray.origin.y) * invDirY;
-            tYMax = -ray.origin.y * invDirY;
-        }
+                Ray rayTest = new Ray();
+                rayTest.setCurrentMaterial(currentBlock);
+                rayTest.o.set(px, py, pz);
+                rayTest.d.set(dx, dy, dz);
+                rayTest.n.set(nx, ny, nz);
+                if (ray.occlusion) {
+                    // Partial blocks need the shape test, translucent surfaces let the ray through
+                    if (currentBlock.intersect(rayTest, scene) && rayTest.color.w >= OCCLUSION_ALPHA) {
+                        ray.distance = (float) (rayTest.distance + distance);
+                        return true;
+                    }
+                } else if (currentBlock.intersect(rayTest, scene)) {
+                    if (rayTest.color.w < OCCLUSION_ALPHA) {
+                        // Translucent surface, remember it and continue through the medium
+                        if (segment == null) {
+                            segment = ray.addSegment((float) tEnter);
+                        }
+                        if (entry) {
+                            segment.setBoundary(rayTest.color.x, rayTest.color.y, rayTest.color.z, rayTest.color.w, type);
+                        } else {
+                            segment.addSurface(rayTest.color.x, rayTest.color.y, rayTest.color.z, rayTest.color.w);
+                        }
+                        medium = currentBlock.localIntersect ? LargeDiskRenderer.Segment.NO_MEDIUM : type;
+                    } else {
+                        ray.normal.x = (float) rayTest.n.x;
+                        ray.normal.y = (float) rayTest.n.y;
+                        ray.normal.z = (float) rayTest.n.z;
+                        ray.color.x = (float) rayTest.color.x;
+                        ray.color.y = (float) rayTest.color.y;
+                        ray.color.z = (float) rayTest.color.z;
+                        ray.emittance.x = (float) rayTest.emittance.x;
+                        ray.emittance.y = (float) rayTest.emittance.y;
+                        ray.emittance.z = (float) rayTest.emittance.z;
+                        // Written last, a ray with a final distance also has its final color
+                        ray.distance = (float) (rayTest.distance + distance);
+                        return true;
+                    }
+                }
+            }
+            entry = false;
 
-        if ((tMin > tYMax) || (tYMin > tMax))
-            return false;
+            // No intersection, exit current octree leaf through the nearest far plane.
+            int lx = x >>> level;
+            int ly = y >>> level;
+            int lz = z >>> level;
+            double tNext = Double.POSITIVE_INFINITY;
 
-        if (tYMin > tMin) {
-            tMin = tYMin;
+            double t = ((dx > 0 ? lx + 1 : lx) << level) * invDx + offsetX;
+            if (t < tNext) {
+                tNext = t;
+                nx = dx > 0 ? -1 : 1;
+                ny = nz = 0;
+            }
+            t = ((dy > 0 ? ly + 1 : ly) << level) * invDy + offsetY;
+            if (t < tNext) {
+                tNext = t;
+                ny = dy > 0 ? -1 : 1;
+                nx = nz = 0;
+            }
+            t = ((dz > 0 ? lz + 1 : lz) << level) * invDz + offsetZ;
+            if (t < tNext) {
+                tNext = t;
+                nz = dz > 0 ? -1 : 1;
+                nx = ny = 0;
+            }
 
-            ny = -FastMath.signum(ray.direction.y);
-            nx = nz = 0;
+            distance = FastMath.max(tNext, distance + Ray.EPSILON);
         }
 
-        if (tYMax < tMax)
-            tMax = tYMax;
-
-        float tZMin, tZMax;
-        float invDirZ = 1 / ray.direction.z;
-        if (invDirZ >= 0) {
-            tZMin = -ray.origin.z * invDirZ;
-            tZMax = (octree_size - ray.origin.z) * invDirZ;
-        } else {
-            tZMin = (octree_size - ray.origin.z) * invDirZ;
-            tZMax = -ray.origin.z * invDirZ;
+        if (segment != null) {
+            segment.tExit = (float) distance;
+            segment.exitMedium = medium;
         }
+        return false;
+    }
 
-        if ((tMin > tZMax) || (tZMin > tMax))
-            return false;
+    /**
+     * Rewrite the nodes in depth first order, dropping freed slots and trimming the array.
+     * The children of a node stay one block of eight, and blocks are laid out in the order a traversal
+     * reaches them, so lookups and ray traversal mostly walk forward through memory.
+     * The compacted octree is packed if it fits.
+     */
+    public void compact() {
+        // Packed octrees are always compacted
+        if (packedData != null) return;
 
-        if (tZMin > tMin) {
-            tMin = tZMin;
+        // The root and one block of eight per branch
+        int[] compacted = new int[(int) nodeCount()];
+        int compactedSize = relayout(compacted, 0, 0, 1);
 
-            nz = -FastMath.signum(ray.direction.z);
-            nx = ny = 0;
-        }
+        treeData = compacted;
+        size = compactedSize;
+        freeHead = -1;
+        pack();
+    }
 
-        if (tMin < 0)
-            return false;
+    /**
+     * Copy the subtree at nodeIndex to targetIndex in target, allocating child blocks from next.
+     * Returns the next free index.
+     */
+    private int relayout(int[] target, int nodeIndex, int targetIndex, int next) {
+        if (treeData[nodeIndex] <= 0) {
+            target[targetIndex] = treeData[nodeIndex];
+            return next;
+        }
 
-        ray.normal.x = nx;
-        ray.normal.y = ny;
-        ray.normal.z = nz;
-        ray.distance += tMin;
-        return true;
+        int firstChildIndex = next;
+        target[targetIndex] = firstChildIndex;
+        next += 8;
+        for (int i = 0; i < 8; i++) {
+            next = relayout(target, treeData[nodeIndex] + i, firstChildIndex + i, next);
+        }
+        return next;
     }
 
     /**
-     * Store this octree into an output stream. Make sure this octree is finalized before storing.
+     * Store this octree into an output stream. Make sure this octree is finalized with {@link #compact()} before storing.
      */
     public void store(DataOutputStream output) throws IOException {
         output.writeInt(depth);
@@ -388,8 +969,21 @@ public class MiniPackedOctree {
         output.writeDouble(center.x);
         output.writeDouble(center.y);
         output.writeDouble(center.z);
-        for (int i = 0; i < size; i++)
-            output.writeInt(treeData[i]);
+        Occupancy occupancy = occupancy();
+        if (packedData != null) {
+            output.writeByte(FORMAT_PACKED | FORMAT_OCCUPANCY);
+            occupancy.store(output);
+            output.writeInt(localPalette.length);
+            for (int type : localPalette)
+                output.writeInt(type);
+            for (int i = 0; i < size; i++)
+                output.writeChar(packedData[i]);
+        } else {
+            output.writeByte(FORMAT_INT | FORMAT_OCCUPANCY);
+            occupancy.store(output);
+            for (int i = 0; i < size; i++)
+                output.writeInt(treeData[i]);
+        }
     }
 
     public static MiniPackedOctree load(DataInputStream in) throws IOException {
@@ -399,9 +993,26 @@ public class MiniPackedOctree {
 
         MiniPackedOctree tree = new MiniPackedOctree(depth, center);
         tree.size = size;
-        tree.treeData = new int[size];
-        for (int i = 0; i < size; i++)
-            tree.treeData[i] = in.readInt();
+        byte format = in.readByte();
+        if ((format & FORMAT_OCCUPANCY) != 0) {
+            tree.occupancy = Occupancy.load(in, depth);
+            format &= ~FORMAT_OCCUPANCY;
+        }
+        if (format == FORMAT_PACKED) {
+            tree.localPalette = new int[in.readInt()];
+            for (int i = 0; i < tree.localPalette.length; i++)
+                tree.localPalette[i] = in.readInt();
+            tree.packedData = new char[size];
+            for (int i = 0; i < size; i++)
+                tree.packedData[i] = in.readChar();
+            tree.treeData = null;
+        } else if (format == FORMAT_INT) {
+            tree.treeData = new int[size];
+            for (int i = 0; i < size; i++)
+                tree.treeData[i] = in.readInt();
+        } else {
+            throw new IOException("Unknown sub-octree format " + format);
+        }
 
         return tree;
     }
@@ -0,0 +1,199 @@
+package chunkydiskrenderer;
+
+import it.unimi.dsi.fastutil.ints.Int2LongMap;
+import it.unimi.dsi.fastutil.ints.Int2LongOpenHashMap;
+import org.apache.commons.math3.util.FastMath;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Which parts of a MiniPackedOctree hold anything but air (type 0), so rays can skip empty space
+ * without descending the octree or looking up block types.
+ * It keeps the bounds of the occupied blocks, one bit per block of a coarse grid of at most 4^3 blocks,
+ * and for every partly occupied 16^3 brick a 64 bit mask of its 4^3 block cells.
+ * Rays walk the coarse grid to find where they first reach occupied space, and the cell masks let them
+ * step over the empty cells next to surfaces, where the octree is deepest.
+ * Only partly occupied bricks are kept, so the masks grow with the surface and not with the volume.
+ * Octrees shallower than a brick only have the bounds and the coarse grid.
+ */
+public class Occupancy {
+    private static final int CELL_SHIFT = 2;
+    private static final int BRICK_SHIFT = 4;
+    // The coarse grid has at most 2^COARSE_BITS blocks along each axis
+    private static final int COARSE_BITS = 2;
+    // Cells of the 2^3 cell block at the origin of a brick
+    private static final long CELL_BLOCK = 0x330033L;
+
+    private final int depth;
+    // Bounds of the occupied blocks, max exclusive. Empty if minX >= maxX
+    int minX, minY, minZ, maxX, maxY, maxZ;
+    final int coarseShift;
+    private final long[] coarse;
+    // Cell masks of the partly occupied bricks by brick index, 0 for empty and full bricks
+    private final Int2LongOpenHashMap cells;
+
+    private Occupancy(int depth) {
+        this.depth = depth;
+        coarseShift = FastMath.max(FastMath.min(BRICK_SHIFT, depth), depth - COARSE_BITS);
+        coarse = new long[words(coarseShift)];
+        cells = depth < BRICK_SHIFT ? null : new Int2LongOpenHashMap();
+        minX = minY = minZ = Integer.MAX_VALUE;
+        maxX = maxY = maxZ = Integer.MIN_VALUE;
+    }
+
+    private int words(int shift) {
+        return (int) (((1L << (3 * (depth - shift))) + 63) >>> 6);
+    }
+
+    private int blockIndex(int shift, int x, int y, int z) {
+        int bits = depth - shift;
+        return (((z >>> shift) << bits | (y >>> shift)) << bits) | (x >>> shift);
+    }
+
+    /**
+     * Collects the occupied leaves of an octree.
+     */
+    static class Builder {
+        private final Occupancy occupancy;
+
+        Builder(int depth) {
+            occupancy = new Occupancy(depth);
+        }
+
+        /**
+         * Mark the leaf of 2^level blocks at (x, y, z) as occupied.
+         */
+        void add(int x, int y, int z, int level) {
+            int leafSize = 1 << level;
+            occupancy.minX = FastMath.min(occupancy.minX, x);
+            occupancy.minY = FastMath.min(occupancy.minY, y);
+            occupancy.minZ = FastMath.min(occupancy.minZ, z);
+            occupancy.maxX = FastMath.max(occupancy.maxX, x + leafSize);
+            occupancy.maxY = FastMath.max(occupancy.maxY, y + leafSize);
+            occupancy.maxZ = FastMath.max(occupancy.maxZ, z + leafSize);
+
+            mark(occupancy.coarse, occupancy.coarseShift, x, y, z, leafSize);
+            // Leaves covering whole bricks leave them full, which needs no mask
+            if (occupancy.cells == null || level >= BRICK_SHIFT) return;
+
+            // The leaf covers whole cells or lies inside one
+            long mask = 0;
+            for (int cz = z; cz < z + leafSize; cz += 1 << CELL_SHIFT) {
+                for (int cy = y; cy < y + leafSize; cy += 1 << CELL_SHIFT) {
+                    for (int cx = x; cx < x + leafSize; cx += 1 << CELL_SHIFT) {
+                        mask |= 1L << cellBit(cx, cy, cz);
+                    }
+                }
+            }
+            int brick = occupancy.blockIndex(BRICK_SHIFT, x, y, z);
+            occupancy.cells.put(brick, occupancy.cells.get(brick) | mask);
+        }
+
+        private void mark(long[] bits, int shift, int x, int y, int z, int leafSize) {
+            for (int bz = z >>> shift; bz <= (z + leafSize - 1) >>> shift; bz++) {
+                for (int by = y >>> shift; by <= (y + leafSize - 1) >>> shift; by++) {
+                    for (int bx = x >>> shift; bx <= (x + leafSize - 1) >>> shift; bx++) {
+                        int index = occupancy.blockIndex(shift, bx << shift, by << shift, bz << shift);
+                        bits[index >>> 6] |= 1L << index;
+                    }
+                }
+            }
+        }
+
+        Occupancy build() {
+            if (occupancy.cells != null) {
+                // Bricks filled by small leaves are full as well
+                occupancy.cells.int2LongEntrySet().removeIf(entry -> entry.getLongValue() == -1L);
+                occupancy.cells.trim();
+            }
+            return occupancy;
+        }
+    }
+
+    private static int cellBit(int x, int y, int z) {
+        int mask = (1 << (BRICK_SHIFT - CELL_SHIFT)) - 1;
+        return ((((z >>> CELL_SHIFT) & mask) << 2 | ((y >>> CELL_SHIFT) & mask)) << 2) | ((x >>> CELL_SHIFT) & mask);
+    }
+
+    /**
+     * True if the octree is all air.
+     */
+    public boolean isEmpty() {
+        return minX >= maxX;
+    }
+
+    /**
+     * True if the block of the coarse grid containing (x, y, z) is occupied.
+     */
+    public boolean isCoarseOccupied(int x, int y, int z) {
+        int index = blockIndex(coarseShift, x, y, z);
+        return (coarse[index >>> 6] & (1L << index)) != 0;
+    }
+
+    /**
+     * The size, as a power of two, of the empty cell or 8^3 block of an occupied brick containing (x, y, z).
+     * Returns -1 if the cell is occupied or the brick is empty or full, as empty bricks are merged air leaves
+     * the octree finds without descending far.
+     */
+    public int emptyLevel(int x, int y, int z) {
+        if (cells == null) return -1;
+
+        long cellMask = cells.get(blockIndex(BRICK_SHIFT, x, y, z));
+        if (cellMask == 0 || (cellMask & (1L << cellBit(x, y, z))) != 0) return -1;
+        // Cell bit of the origin of the 8^3 block containing (x, y, z)
+        int block = ((x & 8) >>> 2) | (y & 8) | ((z & 8) << 2);
+        return (cellMask & (CELL_BLOCK << block)) == 0 ? CELL_SHIFT + 1 : CELL_SHIFT;
+    }
+
+    /**
+     * Approximate heap size of the masks.
+     */
+    public long memoryBytes() {
+        long bytes = (long) coarse.length * Long.BYTES;
+        if (cells != null) {
+            // Open addressing keeps the table at most 3/4 full
+            bytes += (long) cells.size() * 2 * (Integer.BYTES + Long.BYTES);
+        }
+        return bytes;
+    }
+
+    public void store(DataOutputStream output) throws IOException {
+        output.writeInt(minX);
+        output.writeInt(minY);
+        output.writeInt(minZ);
+        output.writeInt(maxX);
+        output.writeInt(maxY);
+        output.writeInt(maxZ);
+        for (long word : coarse)
+            output.writeLong(word);
+        if (cells != null) {
+            output.writeInt(cells.size());
+            for (Int2LongMap.Entry entry : cells.int2LongEntrySet()) {
+                output.writeInt(entry.getIntKey());
+                output.writeLong(entry.getLongValue());
+            }
+        }
+    }
+
+    public static Occupancy load(DataInputStream in, int depth) throws IOException {
+        Occupancy occupancy = new Occupancy(depth);
+        occupancy.minX = in.readInt();
+        occupancy.minY = in.readInt();
+        occupancy.minZ = in.readInt();
+        occupancy.maxX = in.readInt();
+        occupancy.maxY = in.readInt();
+        occupancy.maxZ = in.readInt();
+        for (int i = 0; i < occupancy.coarse.length; i++)
+            occupancy.coarse[i] = in.readLong();
+        if (occupancy.cells != null) {
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                int brick = in.readInt();
+                occupancy.cells.put(brick, in.readLong());
+            }
+        }
+        return occupancy;
+    }
+}
@@ -0,0 +1,194 @@
+package chunkydiskrenderer;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import se.llbit.chunky.chunk.BlockPalette;
+import se.llbit.log.Log;
+
+import java.io.*;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Connections from the coordinating renderer to DiskRenderWorker processes.
+ * Sub-octree index i is owned by worker i % workers. Every batch is sent to all workers at once, each with the
+ * owned sub-octrees on the path of every ray, and the closest hits are merged when all workers have replied.
+ *
+ * Workers are configured with the system property chunkydiskrenderer.workers, a comma separated list of host:port.
+ * Workers must share the chunkydiskrenderer.storage roots of the coordinator, scripts/local-workers.sh runs a
+ * render through two workers on this machine.
+ */
+public class RemoteWorkers implements Closeable {
+    public static final String WORKERS_PROPERTY = "chunkydiskrenderer.workers";
+
+    private final LargeDiskOctree octree;
+    private final ArrayList<Connection> connections = new ArrayList<>();
+    private final ExecutorService senders;
+
+    private static final class Connection {
+        final Socket socket;
+        final DataInputStream in;
+        final DataOutputStream out;
+
+        Connection(String address) throws IOException {
+            int colon = address.lastIndexOf(':');
+            if (colon < 0) {
+                throw new IOException("Expected host:port, got " + address);
+            }
+            socket = new Socket(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1)));
+            socket.setTcpNoDelay(true);
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        }
+    }
+
+    /**
+     * Connect to the workers in the system property, or return null if none are configured.
+     */
+    public static RemoteWorkers fromSystemProperty(LargeDiskOctree octree, BlockPalette palette) throws IOException {
+        String workers = System.getProperty(WORKERS_PROPERTY, "").trim();
+        if (workers.isEmpty()) return null;
+
+        ArrayList<String> addresses = new ArrayList<>();
+        for (String address : workers.split(",")) {
+            if (!address.trim().isEmpty()) addresses.add(address.trim());
+        }
+        return new RemoteWorkers(octree, palette, addresses);
+    }
+
+    public RemoteWorkers(LargeDiskOctree octree, BlockPalette palette, List<String> addresses) throws IOException {
+        this.octree = octree;
+        this.senders = Executors.newFixedThreadPool(addresses.size(), r -> {
+            Thread thread = new Thread(r, "Disk Render Worker Connection");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        try {
+            for (String address : addresses) {
+                connections.add(new Connection(address));
+            }
+
+            // Send the palette and the owned sub-octrees
+            int[] cells = octree.cellIndices();
+            for (int w = 0; w < connections.size(); w++) {
+                DataOutputStream out = connections.get(w).out;
+                out.writeInt(DiskRenderWorker.MAGIC);
+                palette.write(out);
+
+                IntArrayList owned = new IntArrayList();
+                for (int cell : cells) {
+                    if (owner(cell) == w) owned.add(cell);
+                }
+                out.writeInt(owned.size());
+                for (int i = 0; i < owned.size(); i++) {
+                    out.writeInt(owned.getInt(i));
+                    out.writeUTF(octree.octrees.get(owned.getInt(i)).getAbsolutePath());
+                }
+                out.flush();
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+        Log.info("Rendering with " + connections.size() + " disk render workers");
+    }
+
+    public int owner(int cell) {
+        return cell % connections.size();
+    }
+
+    /**
+     * Trace a batch of rays on the workers, blocking until all hits are merged.
+     * Occluded rays are not sent.
+     */
+    public void trace(ArrayList<LargeDiskRenderer.CacheRay> rays) throws IOException, InterruptedException {
+        int workers = connections.size();
+
+        // Owned sub-octrees on the path of each ray, per worker
+        IntArrayList[] cells = new IntArrayList[rays.size() * workers];
+        IntArrayList[] sent = new IntArrayList[workers];
+        for (int w = 0; w < workers; w++) {
+            sent[w] = new IntArrayList();
+        }
+        for (int k = 0; k < rays.size(); k++) {
+            LargeDiskRenderer.CacheRay ray = rays.get(k);
+            if (ray.isOccluded()) continue;
+
+            int rayIndex = k;
+            octree.walkCells(ray.origin.x, ray.origin.y, ray.origin.z,
+                    ray.direction.x, ray.direction.y, ray.direction.z, ray.distance, (index, tEnter) -> {
+                int slot = rayIndex * workers + owner(index);
+                if (cells[slot] == null) {
+                    cells[slot] = new IntArrayList();
+                    sent[owner(index)].add(rayIndex);
+                }
+                cells[slot].add(index);
+                return true;
+            });
+        }
+
+        ArrayList<Future<Void>> requests = new ArrayList<>();
+        for (int w = 0; w < workers; w++) {
+            int worker = w;
+            requests.add(senders.submit(() -> {
+                sendBatch(connections.get(worker).out, rays, sent[worker], cells, worker, workers);
+                return null;
+            }));
+        }
+        try {
+            for (Future<Void> request : requests) {
+                request.get();
+            }
+
+            // Merge the replies in worker order so ties are resolved the same way every time
+            for (int w = 0; w < workers; w++) {
+                DataInputStream in = connections.get(w).in;
+                int count = in.readInt();
+                if (count != sent[w].size()) {
+                    throw new IOException("Worker replied with " + count + " rays, expected " + sent[w].size());
+                }
+                for (int i = 0; i < count; i++) {
+                    DiskRenderWorker.mergeHit(in, rays.get(sent[w].getInt(i)));
+                }
+            }
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to send rays to a worker", e.getCause());
+        }
+    }
+
+    private static void sendBatch(DataOutputStream out, ArrayList<LargeDiskRenderer.CacheRay> rays, IntArrayList sent,
+                                  IntArrayList[] cells, int worker, int workers) throws IOException {
+        out.writeInt(DiskRenderWorker.BATCH);
+        out.writeInt(sent.size());
+        for (int i = 0; i < sent.size(); i++) {
+            int rayIndex = sent.getInt(i);
+            DiskRenderWorker.writeRay(out, rays.get(rayIndex));
+            IntArrayList path = cells[rayIndex * workers + worker];
+            out.writeInt(path.size());
+            for (int j = 0; j < path.size(); j++) {
+                out.writeInt(path.getInt(j));
+            }
+        }
+        out.flush();
+    }
+
+    @Override
+    public void close() {
+        for (Connection connection : connections) {
+            try {
+                connection.out.writeInt(DiskRenderWorker.CLOSE);
+                connection.out.flush();
+                connection.socket.close();
+            } catch (IOException e) {
+                // Already gone
+            }
+        }
+        connections.clear();
+        senders.shutdownNow();
+    }
+}
@@ -0,0 +1,268 @@
+package chunkydiskrenderer;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.io.FastBufferedInputStream;
+import it.unimi.dsi.fastutil.io.FastBufferedOutputStream;
+import se.llbit.chunky.renderer.scene.Camera;
+import se.llbit.chunky.renderer.scene.Scene;
+import se.llbit.json.JsonObject;
+import se.llbit.math.Vector3;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+
+/**
+ * A snapshot of a final render through the disk pipeline, so an interrupted render can be resumed.
+ * It holds the sample buffer, SPP and render time of the completed passes, and the rays of the pass in progress:
+ * rays that are traced, rays in the sweep being traced with the sub-octrees each still has to pass through,
+ * and rays queued for the next sweep.
+ *
+ * Samples are only resumed by a scene with the same world, chunk selection, render settings, camera, canvas and
+ * sun. The rays of the pass in progress refer to sub-octrees by index, so they are only resumed if the
+ * sub-octrees were built the same way.
+ */
+public class RenderCheckpoint {
+    static final int MAGIC = 0x44524b43;
+    static final int VERSION = 1;
+    // Scene description entries the samples depend on besides the camera, canvas and sun
+    private static final String[] SETTINGS = {
+            "world", "chunkList", "yClipMin", "yClipMax", "rayDepth", "sunEnabled", "emittersEnabled",
+            "emitterIntensity", "stillWater", "waterOpacity", "waterVisibility", "useCustomWaterColor", "waterColor",
+            "waterHeight", "biomeColorsEnabled", "transparentSky", "fogDensity", "skyFogDensity", "fastFog", "fogColor",
+            "sky", "renderActors", "entities", "actors", "materials",
+    };
+
+    // Phases of a render pass
+    public static final int CAMERA = 0;
+    public static final int SHADOW = 1;
+
+    final long sceneFingerprint;
+    final int spp;
+    final long renderTime;
+    final double[] samples;
+    // The pass in progress, null if the checkpoint was taken between passes
+    Pass pass;
+
+    /**
+     * The rays of one phase of a render pass in flight, captured between two sub-octrees of a sweep.
+     */
+    public static class InFlight {
+        final ArrayList<LargeDiskRenderer.CacheRay> traced;
+        final ArrayList<LargeDiskRenderer.CacheRay> sweep;
+        // Sub-octrees the sweep still has to trace, in sweep order, with the indices into sweep of their rays
+        final int[] cells;
+        final IntArrayList[] bins;
+        final ArrayList<LargeDiskRenderer.CacheRay> queued;
+
+        public InFlight(ArrayList<LargeDiskRenderer.CacheRay> traced, ArrayList<LargeDiskRenderer.CacheRay> sweep,
+                        int[] cells, IntArrayList[] bins, ArrayList<LargeDiskRenderer.CacheRay> queued) {
+            this.traced = traced;
+            this.sweep = sweep;
+            this.cells = cells;
+            this.bins = bins;
+            this.queued = queued;
+        }
+
+        /**
+         * Every ray of the phase added so far.
+         */
+        public ArrayList<LargeDiskRenderer.CacheRay> rays() {
+            ArrayList<LargeDiskRenderer.CacheRay> rays = new ArrayList<>(traced.size() + sweep.size() + queued.size());
+            rays.addAll(traced);
+            rays.addAll(sweep);
+            rays.addAll(queued);
+            return rays;
+        }
+    }
+
+    /**
+     * A render pass in progress.
+     */
+    public static class Pass {
+        final long cellFingerprint;
+        final int phase;
+        // Traced camera rays, only kept during the shadow phase
+        final ArrayList<LargeDiskRenderer.CacheRay> cameraRays;
+        final InFlight rays;
+
+        public Pass(long cellFingerprint, int phase, ArrayList<LargeDiskRenderer.CacheRay> cameraRays, InFlight rays) {
+            this.cellFingerprint = cellFingerprint;
+            this.phase = phase;
+            this.cameraRays = cameraRays;
+            this.rays = rays;
+        }
+    }
+
+    /**
+     * Receives the rays in flight at the sub-octree boundaries of a sweep.
+     */
+    public interface Listener {
+        /**
+         * True if a checkpoint should be written at the next sub-octree boundary.
+         */
+        boolean due();
+
+        void write(InFlight rays);
+    }
+
+    public RenderCheckpoint(long sceneFingerprint, int spp, long renderTime, double[] samples, Pass pass) {
+        this.sceneFingerprint = sceneFingerprint;
+        this.spp = spp;
+        this.renderTime = renderTime;
+        this.samples = samples;
+        this.pass = pass;
+    }
+
+    /**
+     * Hash of everything the samples depend on: the world and chunk selection, the render settings, whether sun
+     * lighting is on, the canvas, camera and sun.
+     */
+    public static long sceneFingerprint(Scene scene, boolean sunLight) {
+        return settingsFingerprint(viewFingerprint(scene), scene.toJson(), sunLight);
+    }
+
+    /**
+     * Mix the world, chunk selection and render settings of a scene description into a fingerprint.
+     */
+    static long settingsFingerprint(long h, JsonObject json, boolean sunLight) {
+        for (String setting : SETTINGS) {
+            String value = json.get(setting).toCompactString();
+            for (int i = 0; i < value.length(); i++) {
+                h = h * 0x9E3779B97F4A7C15L + value.charAt(i);
+            }
+            h = h * 0x9E3779B97F4A7C15L + value.length();
+        }
+        return h * 0x9E3779B97F4A7C15L + (sunLight ? 1 : 0);
+    }
+
+    private static long viewFingerprint(Scene scene) {
+        Camera camera = scene.camera();
+        Vector3 position = camera.getPosition();
+        double[] values = {
+                scene.width, scene.height, scene.canvasWidth(), scene.canvasHeight(),
+                position.x, position.y, position.z,
+                camera.getYaw(), camera.getPitch(), camera.getRoll(), camera.getFov(),
+                scene.sun().getAzimuth(), scene.sun().getAltitude(), scene.sun().getIntensity(),
+        };
+        long h = 0;
+        for (double value : values) {
+            h = h * 0x9E3779B97F4A7C15L + Double.doubleToLongBits(value);
+        }
+        return h;
+    }
+
+    /**
+     * Write the checkpoint to a temporary file next to the target, then move it into place,
+     * so an interruption while writing leaves the previous checkpoint intact.
+     */
+    public void save(File file) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new FastBufferedOutputStream(new FileOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(sceneFingerprint);
+            out.writeInt(spp);
+            out.writeLong(renderTime);
+            out.writeInt(samples.length);
+            for (double sample : samples) {
+                out.writeDouble(sample);
+            }
+
+            out.writeBoolean(pass != null);
+            if (pass != null) {
+                out.writeLong(pass.cellFingerprint);
+                out.writeInt(pass.phase);
+                writeRays(out, pass.cameraRays);
+                writeRays(out, pass.rays.traced);
+                writeRays(out, pass.rays.sweep);
+                out.writeInt(pass.rays.cells.length);
+                for (int i = 0; i < pass.rays.cells.length; i++) {
+                    IntArrayList bin = pass.rays.bins[i];
+                    out.writeInt(pass.rays.cells[i]);
+                    out.writeInt(bin.size());
+                    for (int j = 0; j < bin.size(); j++) {
+                        out.writeInt(bin.getInt(j));
+                    }
+                }
+                writeRays(out, pass.rays.queued);
+            }
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Read the checkpoint in file, or null if there is none or it was taken of a different scene.
+     * The pass in progress is dropped if the sub-octrees do not match the cell fingerprint.
+     */
+    public static RenderCheckpoint load(File file, long sceneFingerprint, long cellFingerprint) throws IOException {
+        if (!file.isFile()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new FastBufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION || in.readLong() != sceneFingerprint) {
+                return null;
+            }
+            int spp = in.readInt();
+            long renderTime = in.readLong();
+            double[] samples = new double[in.readInt()];
+            for (int i = 0; i < samples.length; i++) {
+                samples[i] = in.readDouble();
+            }
+            RenderCheckpoint checkpoint = new RenderCheckpoint(sceneFingerprint, spp, renderTime, samples, null);
+
+            if (in.readBoolean() && in.readLong() == cellFingerprint) {
+                int phase = in.readInt();
+                ArrayList<LargeDiskRenderer.CacheRay> cameraRays = readRays(in);
+                ArrayList<LargeDiskRenderer.CacheRay> traced = readRays(in);
+                ArrayList<LargeDiskRenderer.CacheRay> sweep = readRays(in);
+                int[] cells = new int[in.readInt()];
+                IntArrayList[] bins = new IntArrayList[cells.length];
+                for (int i = 0; i < cells.length; i++) {
+                    cells[i] = in.readInt();
+                    int size = in.readInt();
+                    bins[i] = new IntArrayList(size);
+                    for (int j = 0; j < size; j++) {
+                        bins[i].add(in.readInt());
+                    }
+                }
+                ArrayList<LargeDiskRenderer.CacheRay> queued = readRays(in);
+                checkpoint.pass = new Pass(cellFingerprint, phase, cameraRays,
+                        new InFlight(traced, sweep, cells, bins, queued));
+            }
+            return checkpoint;
+        }
+    }
+
+    private static void writeRays(DataOutputStream out, Collection<LargeDiskRenderer.CacheRay> rays) throws IOException {
+        out.writeInt(rays.size());
+        for (LargeDiskRenderer.CacheRay ray : rays) {
+            out.writeInt(ray.depth);
+            out.writeInt(ray.x);
+            out.writeInt(ray.y);
+            DiskRenderWorker.writeRay(out, ray);
+            DiskRenderWorker.writeHit(out, ray);
+        }
+    }
+
+    private static ArrayList<LargeDiskRenderer.CacheRay> readRays(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        ArrayList<LargeDiskRenderer.CacheRay> rays = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int depth = in.readInt();
+            int x = in.readInt();
+            int y = in.readInt();
+            LargeDiskRenderer.CacheRay ray = DiskRenderWorker.readRay(in);
+            ray.depth = depth;
+            ray.x = x;
+            ray.y = y;
+            // The hit replaces the current one if it is closer
+            ray.resetHit();
+            DiskRenderWorker.mergeHit(in, ray);
+            rays.add(ray);
+        }
+        return rays;
+    }
+}
@@ -0,0 +1,200 @@
+package chunkydiskrenderer;
+
+import it.unimi.dsi.fastutil.ints.Int2ObjectLinkedOpenHashMap;
+import it.unimi.dsi.fastutil.io.FastBufferedInputStream;
+import org.apache.commons.math3.util.FastMath;
+import se.llbit.log.Log;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.*;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * The resident set of sub-octrees loaded from disk.
+ * Octrees can be prefetched in the background and are evicted in least recently used order.
+ * Unless a fixed capacity is given, the number of resident octrees follows the {@link MemoryBudget}.
+ * Each directory holding sub-octrees gets its own loader thread, so octrees striped across
+ * several storage roots are read in parallel.
+ */
+public class SubOctreeCache {
+    private final ArrayList<File> octrees;
+    // Loader thread per directory
+    private final HashMap<File, ExecutorService> loaders = new HashMap<>();
+    // Fixed number of resident octrees, or 0 to follow the memory budget
+    private final int capacity;
+    private final Int2ObjectLinkedOpenHashMap<Future<MiniPackedOctree>> resident = new Int2ObjectLinkedOpenHashMap<>();
+    private final DiskRenderMetrics metrics = DiskRenderMetrics.get();
+    private final MemoryBudget budget = MemoryBudget.get();
+
+    public SubOctreeCache(ArrayList<File> octrees) {
+        this(octrees, 0);
+    }
+
+    public SubOctreeCache(ArrayList<File> octrees, int capacity) {
+        this.octrees = octrees;
+        this.capacity = capacity;
+    }
+
+    private ExecutorService loader(File octreeF) {
+        return loaders.computeIfAbsent(octreeF.getAbsoluteFile().getParentFile(), directory ->
+                Executors.newSingleThreadExecutor(r -> {
+                    Thread thread = new Thread(r, "Sub-octree Loader " + directory);
+                    thread.setDaemon(true);
+                    return thread;
+                }));
+    }
+
+    public int capacity() {
+        return capacity > 0 ? capacity : budget.residentTrees();
+    }
+
+    public static MiniPackedOctree load(File octreeF) throws IOException {
+        try (DataInputStream in = new DataInputStream(new FastBufferedInputStream(new GZIPInputStream(new FileInputStream(octreeF))))) {
+            return MiniPackedOctree.load(in);
+        }
+    }
+
+    /**
+     * Load the octree at index from disk. The file is read in one go before decompressing
+     * so read and decompression latency can be measured separately.
+     */
+    private MiniPackedOctree loadMeasured(int index) throws IOException {
+        long start = System.nanoTime();
+        byte[] compressed = Files.readAllBytes(octrees.get(index).toPath());
+        long read = System.nanoTime();
+
+        CountingInputStream counter;
+        MiniPackedOctree octree;
+        try (DataInputStream in = new DataInputStream(counter = new CountingInputStream(
+                new FastBufferedInputStream(new GZIPInputStream(new ByteArrayInputStream(compressed)))))) {
+            octree = MiniPackedOctree.load(in);
+        }
+        long decompressed = System.nanoTime();
+
+        metrics.bytesRead.add(compressed.length);
+        metrics.bytesDecompressed.add(counter.count);
+        metrics.readLatency.record(read - start);
+        metrics.decompressLatency.record(decompressed - read);
+        budget.recordTree(octree);
+        return octree;
+    }
+
+    /**
+     * Start loading the octree at index in the background if it is not resident.
+     */
+    public synchronized void prefetch(int index) {
+        if (resident.getAndMoveToLast(index) != null) return;
+
+        FutureTask<MiniPackedOctree> task = new FutureTask<>(() -> loadMeasured(index));
+        resident.putAndMoveToLast(index, task);
+        evict();
+        loader(octrees.get(index)).execute(task);
+    }
+
+    /**
+     * Prefetch octrees in order, leaving room for the octrees already being traced.
+     * Returns the number of octrees that were prefetched.
+     */
+    public int prefetch(int[] indices, int reserved) {
+        int count = FastMath.min(indices.length, capacity() - reserved);
+        for (int i = 0; i < count; i++) {
+            prefetch(indices[i]);
+        }
+        return FastMath.max(count, 0);
+    }
+
+    /**
+     * Get the octree at index, loading it on the calling thread if it is not resident or being loaded.
+     * Returns null if the octree could not be loaded.
+     */
+    public MiniPackedOctree get(int index) throws InterruptedException {
+        while (true) {
+            Future<MiniPackedOctree> future;
+            FutureTask<MiniPackedOctree> task = null;
+            synchronized (this) {
+                future = resident.getAndMoveToLast(index);
+                if (future != null && future.isDone()) {
+                    metrics.cacheHits.increment();
+                } else {
+                    metrics.cacheMisses.increment();
+                }
+                if (future == null) {
+                    task = new FutureTask<>(() -> loadMeasured(index));
+                    resident.putAndMoveToLast(index, task);
+                    evict();
+                    future = task;
+                }
+            }
+
+            if (task != null) {
+                task.run();
+            }
+
+            try {
+                return future.get();
+            } catch (CancellationException e) {
+                // Evicted before it was loaded, try again
+            } catch (ExecutionException e) {
+                Log.error("Failed to load sub-octree " + index, e.getCause());
+                synchronized (this) {
+                    resident.remove(index, future);
+                }
+                return null;
+            }
+        }
+    }
+
+    public synchronized boolean isResident(int index) {
+        return resident.containsKey(index);
+    }
+
+    /**
+     * Drop the octree at index, it has been modified on disk.
+     */
+    public synchronized void invalidate(int index) {
+        Future<MiniPackedOctree> future = resident.remove(index);
+        if (future != null) {
+            future.cancel(false);
+        }
+    }
+
+    private void evict() {
+        int capacity = capacity();
+        while (resident.size() > capacity) {
+            // Octrees that have not started loading are simply dropped from the queue
+            resident.removeFirst().cancel(false);
+        }
+    }
+
+    private static class CountingInputStream extends FilterInputStream {
+        long count = 0;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) count++;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) count += n;
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+    }
+}
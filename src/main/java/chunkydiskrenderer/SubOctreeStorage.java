@@ -0,0 +1,104 @@
+package chunkydiskrenderer;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Places sub-octree files across one or more storage roots, ideally one per drive.
+ *
+ * Roots are configured with the system property chunkydiskrenderer.storage, separated by the platform path
+ * separator. Placement is chosen with chunkydiskrenderer.placement: hash (the default) spreads files by
+ * sub-octree position so neighbouring cells land on different roots, round_robin places them in creation order.
+ * Without any roots the files go to the system temp directory.
+ */
+public class SubOctreeStorage {
+    public static final String ROOTS_PROPERTY = "chunkydiskrenderer.storage";
+    public static final String PLACEMENT_PROPERTY = "chunkydiskrenderer.placement";
+    private static final String FILE_PREFIX = "largediskoctree";
+    private static final String FILE_SUFFIX = ".bin";
+
+    public enum Placement {
+        HASH,
+        ROUND_ROBIN,
+    }
+
+    // A null root is the system temp directory
+    private final File[] roots;
+    private final Placement placement;
+    private final AtomicInteger next = new AtomicInteger();
+
+    public SubOctreeStorage(File[] roots, Placement placement) {
+        this.roots = roots.length == 0 ? new File[] {null} : roots.clone();
+        this.placement = placement;
+    }
+
+    public static SubOctreeStorage fromSystemProperties() {
+        ArrayList<File> roots = new ArrayList<>();
+        for (String root : System.getProperty(ROOTS_PROPERTY, "").split(File.pathSeparator)) {
+            if (!root.trim().isEmpty()) {
+                roots.add(new File(root.trim()));
+            }
+        }
+        Placement placement = Placement.valueOf(
+                System.getProperty(PLACEMENT_PROPERTY, "hash").trim().toUpperCase(Locale.ROOT));
+        return new SubOctreeStorage(roots.toArray(new File[0]), placement);
+    }
+
+    public int rootCount() {
+        return roots.length;
+    }
+
+    /**
+     * Create a new, empty file for the sub-octree with origin (x, y, z). The file is deleted on exit.
+     */
+    public File create(int x, int y, int z) throws IOException {
+        File root = roots[root(x, y, z)];
+        if (root != null && !root.isDirectory() && !root.mkdirs()) {
+            throw new IOException("Could not create storage root " + root);
+        }
+        File file = File.createTempFile(FILE_PREFIX, FILE_SUFFIX, root);
+        file.deleteOnExit();
+        return file;
+    }
+
+    /**
+     * True if the file is named like a sub-octree file and lies directly in one of the storage roots.
+     */
+    public boolean contains(File file) throws IOException {
+        File canonical = file.getCanonicalFile();
+        if (!canonical.getName().startsWith(FILE_PREFIX) || !canonical.getName().endsWith(FILE_SUFFIX)) {
+            return false;
+        }
+        for (File root : roots) {
+            File directory = root != null ? root : new File(System.getProperty("java.io.tmpdir"));
+            if (directory.getCanonicalFile().equals(canonical.getParentFile())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * A file kept next to the sub-octrees, in the first storage root. Unlike sub-octree files it outlives the process.
+     */
+    public File file(String name) throws IOException {
+        File root = roots[0] != null ? roots[0] : new File(System.getProperty("java.io.tmpdir"));
+        if (!root.isDirectory() && !root.mkdirs()) {
+            throw new IOException("Could not create storage root " + root);
+        }
+        return new File(root, name);
+    }
+
+    private int root(int x, int y, int z) {
+        if (roots.length == 1) return 0;
+        if (placement == Placement.ROUND_ROBIN) {
+            return Math.floorMod(next.getAndIncrement(), roots.length);
+        }
+        long h = x * 0x9E3779B97F4A7C15L + y * 0xC2B2AE3D27D4EB4FL + z * 0x165667B19E3779F9L;
+        h ^= h >>> 29;
+        return (int) Math.floorMod(h, (long) roots.length);
+    }
+}
@@ -0,0 +1,170 @@
+package chunkydiskrenderer;
+
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.io.FastBufferedOutputStream;
+import org.apache.commons.math3.util.FastMath;
+
+import java.io.*;
+import java.util.concurrent.*;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes modified sub-octrees to disk in the background while the world is being built.
+ * Writes of the same sub-octree complete in the order they were queued. Until a write completes the sub-octree
+ * can be read back from its pending copy. The number of queued writes is bounded by the build share of the
+ * {@link MemoryBudget}, when it is reached the building thread waits.
+ *
+ * The number of writer threads is the system property chunkydiskrenderer.writers, by default half the processors.
+ */
+public class SubOctreeWriter {
+    public static final String WRITERS_PROPERTY = "chunkydiskrenderer.writers";
+    // Number of levels of each sub-octree kept in the in-memory proxy
+    private static final int PROXY_LEVELS = 3;
+
+    private final int threads = Integer.getInteger(WRITERS_PROPERTY,
+            FastMath.max(1, Runtime.getRuntime().availableProcessors() / 2));
+    private final ThreadPoolExecutor writers;
+    private final MemoryBudget budget = MemoryBudget.get();
+
+    // Latest pending write of each sub-octree
+    private final Int2ObjectOpenHashMap<Pending> pending = new Int2ObjectOpenHashMap<>();
+    // Proxies of completed writes, collected by the building thread
+    private final ConcurrentLinkedQueue<Pending> completed = new ConcurrentLinkedQueue<>();
+    private int queued = 0;
+    // First failure of a write, rethrown to the building thread
+    private Throwable failure = null;
+
+    static final class Pending {
+        final int index;
+        final MiniPackedOctree tree;
+        final CountDownLatch done = new CountDownLatch(1);
+        volatile MiniPackedOctree proxy;
+
+        Pending(int index, MiniPackedOctree tree) {
+            this.index = index;
+            this.tree = tree;
+        }
+    }
+
+    public SubOctreeWriter() {
+        writers = new ThreadPoolExecutor(threads, threads, 10, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+            Thread thread = new Thread(r, "Sub-octree Writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        writers.allowCoreThreadTimeOut(true);
+    }
+
+    public static void store(File octreeF, MiniPackedOctree tree) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new FastBufferedOutputStream(new GZIPOutputStream(new FileOutputStream(octreeF))))) {
+            tree.store(out);
+        }
+    }
+
+    private int maxQueued() {
+        return (int) FastMath.max(threads, FastMath.min(Integer.MAX_VALUE, (long) (budget.buildBytes() / budget.averageTreeBytes())));
+    }
+
+    /**
+     * Queue a compacted sub-octree to be written to its file, waiting while the queue is full.
+     * The tree must not be modified afterwards.
+     */
+    public void write(int index, File octreeF, MiniPackedOctree tree) throws IOException, InterruptedException {
+        Pending write = new Pending(index, tree);
+        Pending previous;
+        synchronized (this) {
+            while (queued >= maxQueued() && failure == null) {
+                wait();
+            }
+            if (failure != null) {
+                throw rethrow(failure);
+            }
+            queued++;
+            previous = pending.put(index, write);
+        }
+
+        writers.execute(() -> {
+            try {
+                if (previous != null) {
+                    // Earlier writes were queued first, so they are running or done
+                    previous.done.await();
+                }
+                store(octreeF, tree);
+                write.proxy = tree.downsample(PROXY_LEVELS);
+                completed.add(write);
+            } catch (InterruptedException e) {
+                synchronized (this) {
+                    if (failure == null) failure = new InterruptedIOException("Sub-octree write interrupted");
+                }
+            } catch (Throwable e) {
+                // Anything else, e.g. running out of memory while downsampling, would otherwise be lost with the task
+                synchronized (this) {
+                    if (failure == null) failure = e;
+                }
+            } finally {
+                write.done.countDown();
+                synchronized (this) {
+                    pending.remove(index, write);
+                    queued--;
+                    notifyAll();
+                }
+            }
+        });
+    }
+
+    /**
+     * The sub-octree at index as it is being written, or null if no write is pending.
+     * The returned tree is shared with the writer and must be copied before it is modified.
+     */
+    public synchronized MiniPackedOctree pending(int index) {
+        Pending write = pending.get(index);
+        return write == null ? null : write.tree;
+    }
+
+    /**
+     * Wait until the pending writes of the sub-octree at index are done, so its file can be removed or replaced.
+     */
+    public void await(int index) throws InterruptedException {
+        Pending write;
+        synchronized (this) {
+            write = pending.get(index);
+        }
+        if (write != null) {
+            write.done.await();
+        }
+    }
+
+    /**
+     * Wait until all queued writes are done. Throws the first write failure, whatever its type.
+     */
+    public synchronized void flush() throws IOException, InterruptedException {
+        while (queued > 0) {
+            wait();
+        }
+        if (failure != null) {
+            Throwable e = failure;
+            failure = null;
+            throw rethrow(e);
+        }
+    }
+
+    private static IOException rethrow(Throwable failure) {
+        if (failure instanceof IOException) {
+            return (IOException) failure;
+        }
+        if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        }
+        if (failure instanceof Error) {
+            throw (Error) failure;
+        }
+        return new IOException("Sub-octree write failed", failure);
+    }
+
+    /**
+     * Take the completed writes, in completion order, to install their proxies.
+     */
+    Pending pollCompleted() {
+        return completed.poll();
+    }
+}
@@ -0,0 +1,311 @@
+package chunkydiskrenderer;
+
+import org.apache.commons.math3.util.FastMath;
+import se.llbit.chunky.chunk.BlockPalette;
+import se.llbit.log.Log;
+import se.llbit.math.Octree;
+
+import java.io.File;
+import java.util.Locale;
+
+/**
+ * Deterministic synthetic worlds for benchmarks and stress tests, written without any Minecraft data.
+ * Every block is a pure function of (seed, x, y, z), so any region can be generated independently
+ * and in any order. Output is written in 16^3 sections through setCube, one sub-octree region at a time,
+ * and sections that are entirely air are skipped.
+ */
+public class SyntheticWorldGenerator {
+    // Written regions match the sub-octree size of LargeDiskOctree so writes never thrash between cells
+    private static final int REGION_DEPTH = 10;
+    private static final int SECTION_DEPTH = 4;
+    private static final int SECTION_SIZE = 1 << SECTION_DEPTH;
+
+    public enum Mode {
+        /** Rolling stone terrain with water filling the valleys. */
+        HEIGHTMAP,
+        /** Heightmap terrain with a network of tunnels carved through it. */
+        CAVES,
+        /** Dense random stone, water and air, close to incompressible. */
+        NOISE,
+        /** No blocks, but every sub-octree region in the extents is still allocated. */
+        EMPTY,
+        /** Alternating stone and air voxels, the worst case for octree merging. */
+        CHECKERBOARD,
+    }
+
+    /**
+     * Progress callback, called after each region is written.
+     */
+    public interface Progress {
+        void update(long regionsDone, long regionsTotal);
+    }
+
+    private final Mode mode;
+    private final long seed;
+    private final int air;
+    private final int stone;
+    private final int water;
+
+    public SyntheticWorldGenerator(Mode mode, long seed, BlockPalette palette) {
+        this.mode = mode;
+        this.seed = seed;
+        this.air = palette.airId;
+        this.stone = palette.stoneId;
+        this.water = palette.waterId;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+
+    /**
+     * Generate the box [x0, x0 + width) x [y0, y0 + height) x [z0, z0 + width) into an octree.
+     * The box must lie within the octree, it may span the full 2^depth extent.
+     */
+    public void generate(Octree.OctreeImplementation octree, int x0, int y0, int z0, int width, int height,
+                         Progress progress) {
+        long extent = 1L << octree.getDepth();
+        if (x0 < 0 || y0 < 0 || z0 < 0 || width <= 0 || height <= 0
+                || x0 + (long) width > extent || y0 + (long) height > extent || z0 + (long) width > extent) {
+            throw new IllegalArgumentException(String.format(Locale.ROOT,
+                    "Extents (%d, %d, %d) + (%d, %d, %d) do not fit in an octree of size %d",
+                    x0, y0, z0, width, height, width, extent));
+        }
+
+        int regionSize = 1 << FastMath.min(REGION_DEPTH, octree.getDepth());
+        long rx0 = x0 / regionSize, rx1 = (x0 + (long) width - 1) / regionSize;
+        long ry0 = y0 / regionSize, ry1 = (y0 + (long) height - 1) / regionSize;
+        long rz0 = z0 / regionSize, rz1 = (z0 + (long) width - 1) / regionSize;
+        long total = (rx1 - rx0 + 1) * (ry1 - ry0 + 1) * (rz1 - rz0 + 1);
+        long done = 0;
+
+        Extents bounds = new Extents(x0, y0, z0, width, height);
+        int[] types = new int[SECTION_SIZE * SECTION_SIZE * SECTION_SIZE];
+        for (long rx = rx0; rx <= rx1; rx++) {
+            for (long rz = rz0; rz <= rz1; rz++) {
+                for (long ry = ry0; ry <= ry1; ry++) {
+                    int ox = (int) (rx * regionSize), oy = (int) (ry * regionSize), oz = (int) (rz * regionSize);
+                    if (mode == Mode.EMPTY) {
+                        octree.set(air, FastMath.max(ox, x0), FastMath.max(oy, y0), FastMath.max(oz, z0));
+                    } else {
+                        generateRegion(octree, bounds, ox, oy, oz, regionSize, types);
+                    }
+                    done++;
+                    if (progress != null) progress.update(done, total);
+                }
+            }
+        }
+    }
+
+    private void generateRegion(Octree.OctreeImplementation octree, Extents bounds, int ox, int oy, int oz,
+                                int regionSize, int[] types) {
+        int sectionSize = FastMath.min(SECTION_SIZE, regionSize);
+        int sectionDepth = Integer.numberOfTrailingZeros(sectionSize);
+        for (int sx = ox; sx < ox + regionSize; sx += sectionSize) {
+            for (int sz = oz; sz < oz + regionSize; sz += sectionSize) {
+                for (int sy = oy; sy < oy + regionSize; sy += sectionSize) {
+                    if (!bounds.overlaps(sx, sy, sz, sectionSize)) continue;
+                    if (fillSection(types, bounds, sx, sy, sz, sectionSize)) {
+                        octree.setCube(sectionDepth, types, sx, sy, sz);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Fill a section with blocks, anything outside the extents is air. Returns false if the section is all air.
+     */
+    private boolean fillSection(int[] types, Extents bounds, int sx, int sy, int sz, int size) {
+        boolean solid = false;
+        for (int lz = 0; lz < size; lz++) {
+            for (int lx = 0; lx < size; lx++) {
+                int x = sx + lx, z = sz + lz;
+                int surface = usesHeightmap() ? heightAt(bounds, x, z) : 0;
+                for (int ly = 0; ly < size; ly++) {
+                    int y = sy + ly;
+                    int type = bounds.contains(x, y, z) ? blockAt(bounds, surface, x, y, z) : air;
+                    types[(lz * size + ly) * size + lx] = type;
+                    solid |= type != air;
+                }
+            }
+        }
+        return solid;
+    }
+
+    private boolean usesHeightmap() {
+        return mode == Mode.HEIGHTMAP || mode == Mode.CAVES;
+    }
+
+    /**
+     * The block at (x, y, z) for a world with the given vertical extents.
+     */
+    public int blockAt(int y0, int height, int x, int y, int z) {
+        Extents bounds = new Extents(x, y0, z, 1, height);
+        return blockAt(bounds, usesHeightmap() ? heightAt(bounds, x, z) : 0, x, y, z);
+    }
+
+    private int blockAt(Extents bounds, int surface, int x, int y, int z) {
+        switch (mode) {
+            case HEIGHTMAP:
+                if (y < surface) return stone;
+                return y < bounds.y0 + bounds.height * 2 / 5 ? water : air;
+            case CAVES:
+                if (y >= surface) return air;
+                if (y < surface - 4) {
+                    // Tunnels follow the zero crossings of two independent noise fields
+                    double a = valueNoise3(seed + 1, x, y, z, 48) - 0.5;
+                    double b = valueNoise3(seed + 2, x, y, z, 48) - 0.5;
+                    if (a * a + b * b < 0.0025) return air;
+                }
+                return stone;
+            case NOISE: {
+                long h = hash(seed, x, y, z);
+                int r = (int) ((h >>> 33) % 3);
+                return r == 0 ? stone : r == 1 ? water : air;
+            }
+            case CHECKERBOARD:
+                return ((x ^ y ^ z) & 1) == 0 ? stone : air;
+            case EMPTY:
+            default:
+                return air;
+        }
+    }
+
+    /**
+     * Terrain height at (x, z) for worlds of the given vertical extents.
+     */
+    public int heightAt(int y0, int height, int x, int z) {
+        return heightAt(new Extents(x, y0, z, 1, height), x, z);
+    }
+
+    private int heightAt(Extents bounds, int x, int z) {
+        // Four octaves of value noise with a base wavelength of 512 blocks
+        double h = 0;
+        double amplitude = 0.5;
+        int wavelength = 512;
+        for (int octave = 0; octave < 4; octave++) {
+            h += amplitude * valueNoise2(seed + octave, x, z, wavelength);
+            amplitude /= 2;
+            wavelength /= 2;
+        }
+        h /= 0.9375;
+        return bounds.y0 + (int) (bounds.height * (0.2 + 0.6 * h));
+    }
+
+    private static double valueNoise2(long seed, int x, int z, int wavelength) {
+        int ix = Math.floorDiv(x, wavelength), iz = Math.floorDiv(z, wavelength);
+        double fx = smooth((x - ix * (double) wavelength) / wavelength);
+        double fz = smooth((z - iz * (double) wavelength) / wavelength);
+        double v00 = unit(hash(seed, ix, 0, iz));
+        double v10 = unit(hash(seed, ix + 1, 0, iz));
+        double v01 = unit(hash(seed, ix, 0, iz + 1));
+        double v11 = unit(hash(seed, ix + 1, 0, iz + 1));
+        return lerp(lerp(v00, v10, fx), lerp(v01, v11, fx), fz);
+    }
+
+    private static double valueNoise3(long seed, int x, int y, int z, int wavelength) {
+        int ix = Math.floorDiv(x, wavelength), iy = Math.floorDiv(y, wavelength), iz = Math.floorDiv(z, wavelength);
+        double fx = smooth((x - ix * (double) wavelength) / wavelength);
+        double fy = smooth((y - iy * (double) wavelength) / wavelength);
+        double fz = smooth((z - iz * (double) wavelength) / wavelength);
+        double v0 = lerp(
+                lerp(unit(hash(seed, ix, iy, iz)), unit(hash(seed, ix + 1, iy, iz)), fx),
+                lerp(unit(hash(seed, ix, iy + 1, iz)), unit(hash(seed, ix + 1, iy + 1, iz)), fx), fy);
+        double v1 = lerp(
+                lerp(unit(hash(seed, ix, iy, iz + 1)), unit(hash(seed, ix + 1, iy, iz + 1)), fx),
+                lerp(unit(hash(seed, ix, iy + 1, iz + 1)), unit(hash(seed, ix + 1, iy + 1, iz + 1)), fx), fy);
+        return lerp(v0, v1, fz);
+    }
+
+    private static double smooth(double t) {
+        return t * t * (3 - 2 * t);
+    }
+
+    private static double lerp(double a, double b, double t) {
+        return a + (b - a) * t;
+    }
+
+    private static double unit(long hash) {
+        return (hash >>> 11) * 0x1.0p-53;
+    }
+
+    /**
+     * SplitMix64 finalizer over the seed and coordinates.
+     */
+    private static long hash(long seed, int x, int y, int z) {
+        long h = seed * 0x9E3779B97F4A7C15L + x;
+        h = h * 0x9E3779B97F4A7C15L + y;
+        h = h * 0x9E3779B97F4A7C15L + z;
+        h = (h ^ (h >>> 30)) * 0xBF58476D1CE4E5B9L;
+        h = (h ^ (h >>> 27)) * 0x94D049BB133111EBL;
+        return h ^ (h >>> 31);
+    }
+
+    private static final class Extents {
+        final int x0, y0, z0, width, height;
+
+        Extents(int x0, int y0, int z0, int width, int height) {
+            this.x0 = x0;
+            this.y0 = y0;
+            this.z0 = z0;
+            this.width = width;
+            this.height = height;
+        }
+
+        boolean contains(int x, int y, int z) {
+            return x >= x0 && x - x0 < width && y >= y0 && y - y0 < height && z >= z0 && z - z0 < width;
+        }
+
+        boolean overlaps(int x, int y, int z, int size) {
+            return x < x0 + (long) width && x + size > x0
+                    && y < y0 + (long) height && y + size > y0
+                    && z < z0 + (long) width && z + size > z0;
+        }
+    }
+
+    /**
+     * Generate a world into a LargeDiskOctree and report the build time and size on disk.
+     *
+     * Usage: &lt;mode&gt; &lt;depth&gt; &lt;width&gt; [height] [seed]
+     */
+    public static void main(String[] args) {
+        if (args.length < 3) {
+            System.err.println("Usage: <heightmap|caves|noise|empty|checkerboard> <depth> <width> [height] [seed]");
+            System.exit(1);
+        }
+        Mode mode = Mode.valueOf(args[0].toUpperCase(Locale.ROOT));
+        int depth = Integer.parseInt(args[1]);
+        int width = Integer.parseInt(args[2]);
+        int height = args.length > 3 ? Integer.parseInt(args[3]) : FastMath.min(width, 1 << depth);
+        long seed = args.length > 4 ? Long.parseLong(args[4]) : 0;
+
+        LargeDiskOctree octree = new LargeDiskOctree(depth);
+        SyntheticWorldGenerator generator = new SyntheticWorldGenerator(mode, seed, new BlockPalette());
+        long start = System.nanoTime();
+        generator.generate(octree, 0, 0, 0, width, height, (done, total) -> {
+            if (done % 64 == 0 || done == total) {
+                Log.info(String.format(Locale.ROOT, "Generated %d / %d regions", done, total));
+            }
+        });
+        octree.cleanup();
+        long elapsed = System.nanoTime() - start;
+
+        long bytes = 0;
+        int files = 0;
+        for (File file : octree.octrees) {
+            if (file != null) {
+                bytes += file.length();
+                files++;
+            }
+        }
+        System.out.println(String.format(Locale.ROOT,
+                "{\"mode\":\"%s\",\"depth\":%d,\"width\":%d,\"height\":%d,\"seed\":%d,\"build_time_ms\":%d,"
+                        + "\"sub_octrees\":%d,\"bytes_on_disk\":%d}",
+                mode.name().toLowerCase(Locale.ROOT), depth, width, height, seed, elapsed / 1000000, files, bytes));
+    }
+}
@@ -0,0 +1,41 @@
+package chunkydiskrenderer;
+
+import org.junit.Test;
+import se.llbit.chunky.renderer.scene.Scene;
+
+import java.util.ArrayList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LargeDiskRendererTest {
+    @Test(timeout = 10000)
+    public void addRaysWaitsForSpaceInTheQueue() throws InterruptedException {
+        // The scene has no disk octree and the renderer thread is not started, so nothing drains the queue
+        LargeDiskRenderer renderer = new LargeDiskRenderer(new Scene());
+        int limit = MemoryBudget.get().maxQueuedRays();
+
+        ArrayList<LargeDiskRenderer.CacheRay> rays = new ArrayList<>(limit + 100);
+        LargeDiskRenderer.Float3 origin = LargeDiskRenderer.Float3.create(0, 0, 0);
+        LargeDiskRenderer.Float3 direction = LargeDiskRenderer.Float3.create(0, 0, 1);
+        for (int i = 0; i < limit + 100; i++) {
+            rays.add(LargeDiskRenderer.CacheRay.create(0, 0, 0, origin, direction));
+        }
+
+        Thread producer = new Thread(() -> {
+            try {
+                renderer.addRays(rays);
+            } catch (InterruptedException e) {
+                // Stopped by the test
+            }
+        });
+        producer.start();
+        producer.join(500);
+
+        assertTrue("addRays returned with more rays queued than the budget allows", producer.isAlive());
+        assertEquals(limit, renderer.queuedRays());
+
+        producer.interrupt();
+        producer.join();
+    }
+}
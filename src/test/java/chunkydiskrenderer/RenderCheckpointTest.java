@@ -0,0 +1,50 @@
+package chunkydiskrenderer;
+
+import org.junit.Test;
+import se.llbit.json.JsonArray;
+import se.llbit.json.JsonObject;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class RenderCheckpointTest {
+    private static JsonObject scene(String worldPath) {
+        JsonObject world = new JsonObject();
+        world.add("path", worldPath);
+        world.add("dimension", 0);
+        JsonArray chunk = new JsonArray();
+        chunk.add(0);
+        chunk.add(0);
+        JsonArray chunks = new JsonArray();
+        chunks.add(chunk);
+        JsonObject json = new JsonObject();
+        json.add("world", world);
+        json.add("chunkList", chunks);
+        json.add("rayDepth", 5);
+        return json;
+    }
+
+    @Test
+    public void changedWorldInvalidatesTheCheckpoint() throws IOException {
+        File file = File.createTempFile("checkpoint", ".bin");
+        file.deleteOnExit();
+        long fingerprint = RenderCheckpoint.settingsFingerprint(0, scene("/worlds/a"), false);
+        new RenderCheckpoint(fingerprint, 16, 1000, new double[12], null).save(file);
+
+        assertNotNull(RenderCheckpoint.load(file, fingerprint, 0));
+        assertNull(RenderCheckpoint.load(file, RenderCheckpoint.settingsFingerprint(0, scene("/worlds/b"), false), 0));
+    }
+
+    @Test
+    public void changedLightingInvalidatesTheCheckpoint() throws IOException {
+        File file = File.createTempFile("checkpoint", ".bin");
+        file.deleteOnExit();
+        long fingerprint = RenderCheckpoint.settingsFingerprint(0, scene("/worlds/a"), false);
+        new RenderCheckpoint(fingerprint, 16, 1000, new double[12], null).save(file);
+
+        assertNull(RenderCheckpoint.load(file, RenderCheckpoint.settingsFingerprint(0, scene("/worlds/a"), true), 0));
+    }
+}
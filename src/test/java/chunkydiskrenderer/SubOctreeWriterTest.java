@@ -0,0 +1,25 @@
+package chunkydiskrenderer;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.fail;
+
+public class SubOctreeWriterTest {
+    @Test(timeout = 10000)
+    public void flushRethrowsUncheckedWriteFailures() throws IOException, InterruptedException {
+        File file = File.createTempFile("largediskoctree", ".bin");
+        file.deleteOnExit();
+        SubOctreeWriter writer = new SubOctreeWriter();
+        // Storing a missing tree fails with a NullPointerException on the writer thread
+        writer.write(0, file, null);
+        try {
+            writer.flush();
+            fail("flush returned after a failed write");
+        } catch (NullPointerException e) {
+            // Expected
+        }
+    }
+}